@@ -0,0 +1,67 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+/**
+ * A fixed-size Bloom filter over 256-bit content hashes. {@link #mightContain} never misses an
+ * added hash, and wrongly reports an unseen one with the probability chosen at construction.
+ */
+public final class BloomFilter {
+  private final long[] bits;
+  private final int numBits;
+  private final int numHashes;
+
+  /** Sizes the filter for {@code expectedEntries} with a {@code falsePositiveRate} chance. */
+  public BloomFilter(int expectedEntries, double falsePositiveRate) {
+    double ln2 = Math.log(2);
+    numBits = Math.max(64,
+        (int) Math.ceil(-expectedEntries * Math.log(falsePositiveRate) / (ln2 * ln2)));
+    numHashes = Math.max(1, (int) Math.round((double) numBits / expectedEntries * ln2));
+    bits = new long[(numBits + 63) / 64];
+  }
+
+  public synchronized void add(byte[] hash) {
+    long h1 = toLong(hash, 0);
+    long h2 = toLong(hash, 8);
+    for (int i = 0; i < numHashes; i++) {
+      int bit = index(h1 + i * h2);
+      bits[bit >>> 6] |= 1L << bit;
+    }
+  }
+
+  public synchronized boolean mightContain(byte[] hash) {
+    long h1 = toLong(hash, 0);
+    long h2 = toLong(hash, 8);
+    for (int i = 0; i < numHashes; i++) {
+      int bit = index(h1 + i * h2);
+      if ((bits[bit >>> 6] & (1L << bit)) == 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private int index(long combinedHash) {
+    return (int) ((combinedHash & Long.MAX_VALUE) % numBits);
+  }
+
+  private static long toLong(byte[] bytes, int offset) {
+    long value = 0;
+    for (int i = offset; i < offset + 8; i++) {
+      value = (value << 8) | (bytes[i] & 0xff);
+    }
+    return value;
+  }
+}
@@ -14,19 +14,158 @@
 
 package com.google.sps.data;
 
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+
 /** The comment object class. */
 public final class Comment {
+  /** Datastore kind and property names for comments. */
+  public static final String KIND = "Comment";
+  public static final String PROPERTY_MESSAGE = "comment";
+  public static final String PROPERTY_AUTHOR = "name";
+  public static final String PROPERTY_LIMIT = "limit";
+  public static final String PROPERTY_TIMESTAMP = "timestamp";
+  public static final String PROPERTY_IMAGE = "image";
+  public static final String PROPERTY_THUMBNAIL = "thumbnail";
+  public static final String PROPERTY_REPLIES = "replies";
+  /**
+   * When a comment last changed after it was posted, by a reply count fold or an import. Indexed
+   * so the newest change is one query away.
+   */
+  public static final String PROPERTY_UPDATED = "updated";
+
+  /**
+   * Kind for replies. A reply's parent key is its thread's comment, so a thread is one entity
+   * group and one ancestor query, while feed queries on {@link #KIND} never see replies.
+   */
+  public static final String REPLY_KIND = "CommentReply";
+
   private final long id;
   private final String message;
   private final String author;
-  private final String commentLimit;
+  private final int commentLimit;
   private final String imageURL;
+  private final String thumbnailURL;
+  private final long timestamp;
+  private final long parentId;
+  private final long replyCount;
+
+  /** Creates a comment. Use an {@code id} of 0 for a comment that hasn't been saved yet. */
+  public Comment(long id, String message, String author, int commentLimit, String imageURL,
+      String thumbnailURL, long timestamp) {
+    this(id, message, author, commentLimit, imageURL, thumbnailURL, timestamp, 0, 0);
+  }
 
-  public Comment(long id, String message, String author, String commentLimit, String imageURL) {
+  /**
+   * Creates a comment that may be a reply. A {@code parentId} of 0 means a top-level comment;
+   * {@code replyCount} is only kept on top-level comments.
+   */
+  public Comment(long id, String message, String author, int commentLimit, String imageURL,
+      String thumbnailURL, long timestamp, long parentId, long replyCount) {
     this.id = id;
     this.message = message;
     this.author = author;
     this.commentLimit = commentLimit;
     this.imageURL = imageURL;
+    this.thumbnailURL = thumbnailURL;
+    this.timestamp = timestamp;
+    this.parentId = parentId;
+    this.replyCount = replyCount;
+  }
+
+  public long getId() {
+    return id;
+  }
+
+  public String getMessage() {
+    return message;
+  }
+
+  public String getAuthor() {
+    return author;
+  }
+
+  public int getCommentLimit() {
+    return commentLimit;
+  }
+
+  public String getImageURL() {
+    return imageURL;
+  }
+
+  public String getThumbnailURL() {
+    return thumbnailURL;
+  }
+
+  public long getTimestamp() {
+    return timestamp;
+  }
+
+  /** Returns the id of the comment this replies to, or 0 for a top-level comment. */
+  public long getParentId() {
+    return parentId;
+  }
+
+  /**
+   * Returns the number of replies as of the last time the thread's counter was folded into the
+   * comment; see {@link ReplyCounter}.
+   */
+  public long getReplyCount() {
+    return replyCount;
+  }
+
+  /** Reads a comment from its Datastore entity. */
+  public static Comment fromEntity(Entity entity) {
+    long id = entity.getKey().getId();
+    String message = (String) entity.getProperty(PROPERTY_MESSAGE);
+    String author = (String) entity.getProperty(PROPERTY_AUTHOR);
+    int commentLimit = parseLimit(entity.getProperty(PROPERTY_LIMIT));
+    String imageURL = (String) entity.getProperty(PROPERTY_IMAGE);
+    String thumbnailURL = (String) entity.getProperty(PROPERTY_THUMBNAIL);
+    Long timestamp = (Long) entity.getProperty(PROPERTY_TIMESTAMP);
+    Key parent = entity.getKey().getParent();
+    Long replyCount = (Long) entity.getProperty(PROPERTY_REPLIES);
+
+    return new Comment(id, message, author, commentLimit, imageURL, thumbnailURL,
+        timestamp == null ? 0 : timestamp, parent == null ? 0 : parent.getId(),
+        replyCount == null ? 0 : replyCount);
+  }
+
+  /**
+   * Returns a new entity for this comment. The limit is stored as a string, like the comments
+   * saved before the model was typed, so projections and counters see a single type. The entity
+   * also carries the terms {@link CommentSearch} looks up. A reply is created under its parent.
+   */
+  public Entity toEntity() {
+    Entity entity;
+    if (parentId != 0) {
+      Key parent = KeyFactory.createKey(KIND, parentId);
+      entity = id == 0 ? new Entity(REPLY_KIND, parent) : new Entity(REPLY_KIND, id, parent);
+    } else {
+      entity = id == 0 ? new Entity(KIND) : new Entity(KIND, id);
+      entity.setUnindexedProperty(PROPERTY_REPLIES, replyCount);
+    }
+    entity.setProperty(PROPERTY_MESSAGE, message);
+    entity.setProperty(PROPERTY_AUTHOR, author);
+    entity.setProperty(PROPERTY_LIMIT, String.valueOf(commentLimit));
+    entity.setProperty(PROPERTY_TIMESTAMP, timestamp);
+    entity.setProperty(PROPERTY_IMAGE, imageURL);
+    entity.setProperty(PROPERTY_THUMBNAIL, thumbnailURL);
+    entity.setProperty(CommentSearch.PROPERTY_TERMS, CommentSearch.indexTerms(message, author));
+    return entity;
+  }
+
+  /** Old comments may have no limit, or a non-numeric one; both read as 0. */
+  private static int parseLimit(Object limit) {
+    if (limit == null) {
+      return 0;
+    }
+
+    try {
+      return Integer.parseInt(limit.toString());
+    } catch (NumberFormatException e) {
+      return 0;
+    }
   }
 }
@@ -0,0 +1,311 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.PropertyProjection;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.google.appengine.api.datastore.Query.SortDirection;
+import com.google.appengine.api.datastore.QueryResultList;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Cold storage for old comments. The retention job moves comments older than a cut-off into
+ * append-only segments: Datastore entities holding up to {@code segmentSize} comments as gzip'd
+ * JSON lines, newest first. A segment's key name starts with the zero-padded timestamp of its
+ * newest comment, so ordering keys orders segments by time and re-running an interrupted job
+ * rewrites the same segment instead of adding a copy. A segment also keeps the replies to its
+ * comments, which the feed doesn't show, and the time it was written, so every instance can tell
+ * its cached feed still holds comments that have since moved here.
+ *
+ * <p>Archive cursors look like {@code a.<segment>.<offset>} and can't be confused with Datastore
+ * cursors, which never contain a dot.
+ */
+public final class CommentArchive {
+  public static final String KIND = "CommentArchive";
+
+  private final static String tblData = "data";
+  private final static String tblCount = "count";
+  private final static String tblReplies = "replies";
+  private final static String tblArchivedAt = "archivedAt";
+  // Datastore takes at most 500 keys per batch delete.
+  private final static int maxBatchSize = 500;
+  private final static String cursorPrefix = "a.";
+  private final static String startCursor = cursorPrefix + "start";
+  // The job runs daily, so an empty archive is only looked for again after this long.
+  private final static long absentRecheckMillis = 10 * 60 * 1000;
+
+  // Segments are never deleted, so once the archive is seen to exist it always will.
+  private static volatile boolean exists;
+  private static volatile long absentCheckedAt;
+
+  /** A page of archived comments, and the cursor after it or null at the end of the archive. */
+  public static final class Page {
+    private final List<Comment> comments;
+    private final String nextCursor;
+
+    private Page(List<Comment> comments, String nextCursor) {
+      this.comments = comments;
+      this.nextCursor = nextCursor;
+    }
+
+    public List<Comment> getComments() {
+      return comments;
+    }
+
+    public String getNextCursor() {
+      return nextCursor;
+    }
+  }
+
+  private CommentArchive() {
+    // Disallow instances.
+  }
+
+  public static boolean isArchiveCursor(String cursor) {
+    return cursor != null && cursor.startsWith(cursorPrefix);
+  }
+
+  /**
+   * Returns the cursor of the newest archived comment, or null if nothing is archived. The feed
+   * hands this out once a page runs past the oldest live comment, which is every first page while
+   * there are few comments, so whether the archive exists is remembered rather than queried each
+   * time.
+   */
+  public static String getStartCursor(DatastoreService datastore) {
+    if (!exists) {
+      long now = System.currentTimeMillis();
+      if (now - absentCheckedAt < absentRecheckMillis) {
+        return null;
+      }
+      if (newestSegment(datastore) == null) {
+        absentCheckedAt = now;
+        return null;
+      }
+      exists = true;
+    }
+    return startCursor;
+  }
+
+  /**
+   * Returns when a segment was last written, or 0 if none has been. The feed treats this like an
+   * edit to its comments, since the archived ones have left the live pages.
+   */
+  public static long getLastArchivedAt(DatastoreService datastore) {
+    if (getStartCursor(datastore) == null) {
+      return 0;
+    }
+    Query query = new Query(KIND)
+        .addProjection(new PropertyProjection(tblArchivedAt, Long.class))
+        .addSort(tblArchivedAt, SortDirection.DESCENDING);
+    List<Entity> newest = datastore.prepare(query).asList(FetchOptions.Builder.withLimit(1));
+    return newest.isEmpty() ? 0 : (long) newest.get(0).getProperty(tblArchivedAt);
+  }
+
+  /**
+   * Moves comments older than {@code cutoff} into new segments, oldest first, deleting each batch
+   * once its segment is written. Replies move into the segment with their comment, and the
+   * thread's reply count shards are deleted. Stops after {@code maxSegments} segments so one run
+   * fits in a request; returns the number of comments archived.
+   *
+   * <p>Each batch continues from the previous one's end cursor. The query is eventually
+   * consistent, so running it again from the start could return comments that were just deleted
+   * and archive them a second time.
+   */
+  public static int archiveOlderThan(DatastoreService datastore, ReplyCounter replyCounter,
+      long cutoff, int segmentSize, int maxSegments) {
+    Query query = new Query(Comment.KIND)
+        .setFilter(new FilterPredicate(
+            Comment.PROPERTY_TIMESTAMP, FilterOperator.LESS_THAN, cutoff))
+        .addSort(Comment.PROPERTY_TIMESTAMP, SortDirection.ASCENDING);
+
+    int archived = 0;
+    Cursor cursor = null;
+    for (int segments = 0; segments < maxSegments; segments++) {
+      FetchOptions fetchOptions = FetchOptions.Builder.withLimit(segmentSize);
+      if (cursor != null) {
+        fetchOptions.startCursor(cursor);
+      }
+      QueryResultList<Entity> batch = datastore.prepare(query).asQueryResultList(fetchOptions);
+      if (batch.isEmpty()) {
+        break;
+      }
+      cursor = batch.getCursor();
+
+      // Segments store comments newest first, like the feed. The archived reply count is exact,
+      // since every reply is read here anyway.
+      List<Comment> comments = new ArrayList<>();
+      List<Comment> replies = new ArrayList<>();
+      List<Key> keys = new ArrayList<>();
+      List<Long> counted = new ArrayList<>();
+      for (int i = batch.size() - 1; i >= 0; i--) {
+        Entity entity = batch.get(i);
+        List<Entity> thread = datastore
+            .prepare(new Query(Comment.REPLY_KIND).setAncestor(entity.getKey()))
+            .asList(FetchOptions.Builder.withDefaults());
+        for (Entity reply : thread) {
+          replies.add(Comment.fromEntity(reply));
+          keys.add(reply.getKey());
+        }
+        // Shards only exist for threads that had a reply, even if it was since deleted.
+        Long stored = (Long) entity.getProperty(Comment.PROPERTY_REPLIES);
+        if (!thread.isEmpty() || (stored != null && stored > 0)) {
+          counted.add(entity.getKey().getId());
+          entity.setUnindexedProperty(Comment.PROPERTY_REPLIES, (long) thread.size());
+        }
+        comments.add(Comment.fromEntity(entity));
+        keys.add(entity.getKey());
+      }
+
+      Comment newest = comments.get(0);
+      String name = String.format("%020d-%d", newest.getTimestamp(), newest.getId());
+      Entity segment = new Entity(KIND, name);
+      segment.setProperty(tblData, new Blob(encode(comments)));
+      segment.setProperty(tblReplies, new Blob(encode(replies)));
+      segment.setUnindexedProperty(tblCount, (long) comments.size());
+      segment.setProperty(tblArchivedAt, System.currentTimeMillis());
+      datastore.put(segment);
+      exists = true;
+      for (int i = 0; i < keys.size(); i += maxBatchSize) {
+        datastore.delete(keys.subList(i, Math.min(i + maxBatchSize, keys.size())));
+      }
+      for (long threadId : counted) {
+        replyCounter.forget(threadId);
+      }
+
+      archived += comments.size();
+      if (batch.size() < segmentSize) {
+        break;
+      }
+    }
+    return archived;
+  }
+
+  /**
+   * Reads up to {@code limit} archived comments starting at {@code cursor}, crossing into older
+   * segments as needed.
+   *
+   * @throws IllegalArgumentException if {@code cursor} isn't an archive cursor
+   */
+  public static Page read(DatastoreService datastore, String cursor, int limit) {
+    Key segmentKey;
+    int offset;
+    if (cursor.equals(startCursor)) {
+      segmentKey = newestSegment(datastore);
+      offset = 0;
+    } else {
+      String[] parts = cursor.split("\\.");
+      if (parts.length != 3 || !isArchiveCursor(cursor)) {
+        throw new IllegalArgumentException("Invalid archive cursor.");
+      }
+      segmentKey = KeyFactory.createKey(KIND, parts[1]);
+      offset = Integer.parseInt(parts[2]);
+    }
+
+    List<Comment> comments = new ArrayList<>();
+    while (segmentKey != null) {
+      List<Comment> segment;
+      try {
+        segment = decode(((Blob) datastore.get(segmentKey).getProperty(tblData)).getBytes());
+      } catch (EntityNotFoundException e) {
+        segment = new ArrayList<>();
+      }
+
+      int end = Math.min(segment.size(), offset + limit - comments.size());
+      if (offset < end) {
+        comments.addAll(segment.subList(offset, end));
+      }
+      if (end < segment.size()) {
+        return new Page(comments, cursorPrefix + segmentKey.getName() + "." + end);
+      }
+
+      segmentKey = olderSegment(datastore, segmentKey);
+      offset = 0;
+      if (comments.size() == limit) {
+        break;
+      }
+    }
+
+    String nextCursor = segmentKey == null ? null : cursorPrefix + segmentKey.getName() + ".0";
+    return new Page(comments, nextCursor);
+  }
+
+  private static Key newestSegment(DatastoreService datastore) {
+    Query query = new Query(KIND)
+        .addSort(Entity.KEY_RESERVED_PROPERTY, SortDirection.DESCENDING)
+        .setKeysOnly();
+    List<Entity> newest = datastore.prepare(query).asList(FetchOptions.Builder.withLimit(1));
+    return newest.isEmpty() ? null : newest.get(0).getKey();
+  }
+
+  private static Key olderSegment(DatastoreService datastore, Key segmentKey) {
+    Query query = new Query(KIND)
+        .setFilter(new FilterPredicate(
+            Entity.KEY_RESERVED_PROPERTY, FilterOperator.LESS_THAN, segmentKey))
+        .addSort(Entity.KEY_RESERVED_PROPERTY, SortDirection.DESCENDING)
+        .setKeysOnly();
+    List<Entity> older = datastore.prepare(query).asList(FetchOptions.Builder.withLimit(1));
+    return older.isEmpty() ? null : older.get(0).getKey();
+  }
+
+  private static byte[] encode(List<Comment> comments) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (Writer writer =
+        new OutputStreamWriter(new GZIPOutputStream(bytes), StandardCharsets.UTF_8)) {
+      for (Comment comment : comments) {
+        writer.write(CommentJson.GSON.toJson(comment));
+        writer.write('\n');
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return bytes.toByteArray();
+  }
+
+  private static List<Comment> decode(byte[] data) {
+    List<Comment> comments = new ArrayList<>();
+    try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+        new GZIPInputStream(new ByteArrayInputStream(data)), StandardCharsets.UTF_8))) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        comments.add(CommentJson.GSON.fromJson(line, Comment.class));
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return comments;
+  }
+}
@@ -0,0 +1,183 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+
+/**
+ * Fans new comments out to open Server-Sent Events streams. Streams are parked
+ * {@link AsyncContext}s, so an idle connection doesn't hold a thread. The last few events are
+ * kept so a client that reconnects with {@code Last-Event-ID} doesn't miss anything. Only comments
+ * posted to this instance are broadcast.
+ *
+ * <p>Streams use non-blocking output: {@link #publish} only queues an event and writes what the
+ * connection will take right away, so a slow client never holds up the request that posted the
+ * comment. A stream that falls more than {@code historySize} events behind is closed, and its
+ * client catches up from the history when it reconnects.
+ *
+ * <p>Event ids are the comment's timestamp in microseconds, bumped past the previous id when
+ * needed, so comments posted in the same millisecond still get distinct, increasing ids while ids
+ * from different instances stay roughly comparable.
+ */
+public final class CommentBroadcaster {
+  private final int historySize;
+  private final Map<AsyncContext, Stream> listeners = new ConcurrentHashMap<>();
+  // Newest event last.
+  private final Deque<byte[]> history = new ArrayDeque<>();
+  private final Deque<Long> historyIds = new ArrayDeque<>();
+  // Guarded by history.
+  private long lastEventId;
+
+  /** One open stream and the events still waiting to be written to it. */
+  private final class Stream implements WriteListener {
+    private final AsyncContext context;
+    private final ServletOutputStream out;
+    private final Deque<byte[]> queue = new ArrayDeque<>();
+    private boolean needsFlush;
+    private boolean closed;
+
+    private Stream(AsyncContext context) throws IOException {
+      this.context = context;
+      this.out = context.getResponse().getOutputStream();
+    }
+
+    private void enqueue(byte[] event) {
+      synchronized (this) {
+        if (closed) {
+          return;
+        }
+        if (queue.size() >= historySize) {
+          close();
+          return;
+        }
+        queue.addLast(event);
+      }
+      drain();
+    }
+
+    @Override
+    public void onWritePossible() {
+      drain();
+    }
+
+    @Override
+    public void onError(Throwable t) {
+      close();
+    }
+
+    /** Writes queued events for as long as the connection can take them without blocking. */
+    private synchronized void drain() {
+      try {
+        while (!closed && out.isReady()) {
+          if (needsFlush) {
+            out.flush();
+            needsFlush = false;
+            continue;
+          }
+          byte[] event = queue.pollFirst();
+          if (event == null) {
+            return;
+          }
+          out.write(event);
+          needsFlush = true;
+        }
+      } catch (IOException | IllegalStateException e) {
+        close();
+      }
+    }
+
+    /** Drops the stream; the client has gone away or can't keep up. */
+    private synchronized void close() {
+      closed = true;
+      queue.clear();
+      listeners.remove(context);
+      try {
+        context.complete();
+      } catch (IllegalStateException alreadyComplete) {
+        // Nothing left to close.
+      }
+    }
+  }
+
+  public CommentBroadcaster(int historySize) {
+    this.historySize = historySize;
+  }
+
+  /**
+   * Starts sending events to {@code context}, first replaying any newer than {@code lastId}. Pass
+   * {@code Long.MAX_VALUE} to start from the next event.
+   */
+  public void subscribe(AsyncContext context, long lastId) throws IOException {
+    Stream stream = new Stream(context);
+
+    // Taken together with publish's update, so each event is either replayed or sent live.
+    synchronized (history) {
+      Iterator<Long> ids = historyIds.iterator();
+      for (byte[] event : history) {
+        if (ids.next() > lastId) {
+          stream.queue.addLast(event);
+        }
+      }
+      listeners.put(context, stream);
+    }
+
+    // The container calls onWritePossible once the stream can be written, which sends the replay.
+    stream.out.setWriteListener(stream);
+  }
+
+  public void unsubscribe(AsyncContext context) {
+    listeners.remove(context);
+  }
+
+  /** Queues a comment for every open stream, under the next event id. */
+  public void publish(Comment comment, byte[] json) {
+    List<Stream> streams;
+    byte[] event;
+    synchronized (history) {
+      long id = Math.max(lastEventId + 1, comment.getTimestamp() * 1000);
+      lastEventId = id;
+
+      byte[] headerBytes = ("id: " + id + "\ndata: ").getBytes(StandardCharsets.UTF_8);
+      event = new byte[headerBytes.length + json.length + 2];
+      System.arraycopy(headerBytes, 0, event, 0, headerBytes.length);
+      System.arraycopy(json, 0, event, headerBytes.length, json.length);
+      event[event.length - 2] = '\n';
+      event[event.length - 1] = '\n';
+
+      history.addLast(event);
+      historyIds.addLast(id);
+      if (history.size() > historySize) {
+        history.removeFirst();
+        historyIds.removeFirst();
+      }
+      streams = new ArrayList<>(listeners.values());
+    }
+
+    for (Stream stream : streams) {
+      stream.enqueue(event);
+    }
+  }
+}
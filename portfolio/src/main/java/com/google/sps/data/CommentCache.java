@@ -0,0 +1,182 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-local, write-through cache of the newest comments. Every comment is stored next to its
+ * serialized JSON so a cache hit touches neither Datastore nor Gson. Each instance keeps its own
+ * copy, so the cache expires after {@code ttlMillis} to pick up comments posted elsewhere.
+ */
+public final class CommentCache {
+  /** A cached comment, its JSON encoding and the web-safe cursor that points just past it. */
+  public static final class Entry {
+    private final Comment comment;
+    private final byte[] json;
+    private final String cursorAfter;
+
+    public Entry(Comment comment, byte[] json, String cursorAfter) {
+      this.comment = comment;
+      this.json = json;
+      this.cursorAfter = cursorAfter;
+    }
+
+    public Comment getComment() {
+      return comment;
+    }
+
+    public byte[] getJson() {
+      return json;
+    }
+
+    /** Returns the cursor after this comment, or null if it was added by a write. */
+    public String getCursorAfter() {
+      return cursorAfter;
+    }
+  }
+
+  private final int capacity;
+  private final long ttlMillis;
+
+  // Newest comment first.
+  private final List<Entry> entries = new ArrayList<>();
+  // True when the cache holds every comment in Datastore.
+  private boolean complete;
+  private long loadedAt;
+  private boolean loaded;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  public CommentCache(int capacity, long ttlMillis) {
+    this.capacity = capacity;
+    this.ttlMillis = ttlMillis;
+  }
+
+  public int getCapacity() {
+    return capacity;
+  }
+
+  /**
+   * Returns the newest {@code limit} entries, or null if the cache is cold, expired, or can't tell
+   * where the next page starts. Counts as a hit or a miss.
+   */
+  public synchronized List<Entry> lookup(int limit) {
+    List<Entry> page = null;
+    if (System.currentTimeMillis() - loadedAt <= ttlMillis) {
+      page = stalePage(limit);
+    }
+
+    if (page == null) {
+      misses.incrementAndGet();
+    } else {
+      hits.incrementAndGet();
+    }
+    return page;
+  }
+
+  /**
+   * Returns the newest {@code limit} entries even if they have expired, or null if the cache is
+   * cold or can't tell where the next page starts.
+   */
+  public synchronized List<Entry> stalePage(int limit) {
+    if (!loaded) {
+      return null;
+    }
+
+    if (limit > entries.size() && !complete) {
+      return null;
+    }
+
+    // Comments posted since the last load have no cursor, so a full page ending on one can't be
+    // served. That holds even when the cache is complete, since older comments may be archived.
+    if (limit <= entries.size() && entries.get(limit - 1).getCursorAfter() == null) {
+      return null;
+    }
+    return snapshot(limit);
+  }
+
+  /** Returns up to {@code limit} of the newest entries, even if they are stale. */
+  public synchronized List<Entry> snapshot(int limit) {
+    return new ArrayList<>(entries.subList(0, Math.min(limit, entries.size())));
+  }
+
+  /**
+   * Replaces the cache contents with freshly read entries, newest first. Comments added by
+   * {@link #addNewest} that the read didn't see yet, because it started before their write or
+   * because the query is eventually consistent, are kept at the front.
+   */
+  public synchronized void load(List<Entry> newest, boolean complete) {
+    Set<Long> readIds = new HashSet<>();
+    for (Entry entry : newest) {
+      readIds.add(entry.getComment().getId());
+    }
+    long newestRead = newest.isEmpty() ? 0 : newest.get(0).getComment().getTimestamp();
+
+    List<Entry> unseenWrites = new ArrayList<>();
+    for (Entry entry : entries) {
+      Comment comment = entry.getComment();
+      if (entry.getCursorAfter() == null && !readIds.contains(comment.getId())
+          && comment.getTimestamp() >= newestRead) {
+        unseenWrites.add(entry);
+      }
+    }
+
+    entries.clear();
+    entries.addAll(unseenWrites);
+    entries.addAll(newest);
+    if (entries.size() > capacity) {
+      entries.subList(capacity, entries.size()).clear();
+      complete = false;
+    }
+    this.complete = complete;
+    loadedAt = System.currentTimeMillis();
+    loaded = true;
+  }
+
+  /**
+   * Marks the cache expired, so the next {@link #lookup} reloads it. Stale pages are still served
+   * while another request reloads.
+   */
+  public synchronized void expire() {
+    loadedAt = 0;
+  }
+
+  /** Adds a just-written comment to the front of the cache, evicting the oldest if full. */
+  public synchronized void addNewest(Entry entry) {
+    if (!loaded) {
+      return;
+    }
+
+    entries.add(0, entry);
+    if (entries.size() > capacity) {
+      entries.remove(entries.size() - 1);
+      complete = false;
+    }
+  }
+
+  public long getHitCount() {
+    return hits.get();
+  }
+
+  public long getMissCount() {
+    return misses.get();
+  }
+}
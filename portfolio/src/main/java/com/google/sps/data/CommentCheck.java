@@ -0,0 +1,49 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+/**
+ * A check that runs on a new comment before it is written. Checks are chained in {@code doPost};
+ * the first one that rejects the comment stops the write.
+ */
+public interface CommentCheck {
+  /** Why a comment was rejected, and the HTTP status to answer with. */
+  final class Rejection {
+    private final int status;
+    private final String message;
+
+    public Rejection(int status, String message) {
+      this.status = status;
+      this.message = message;
+    }
+
+    public int getStatus() {
+      return status;
+    }
+
+    public String getMessage() {
+      return message;
+    }
+  }
+
+  /** Returns null to accept {@code comment}, or the reason to reject it. */
+  Rejection check(Comment comment);
+
+  /** Called once an accepted comment has been written. */
+  default void written(Comment comment) {}
+
+  /** Called when an accepted comment could not be written, or was never queued. */
+  default void failed(Comment comment) {}
+}
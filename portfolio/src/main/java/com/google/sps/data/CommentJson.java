@@ -0,0 +1,131 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+
+/**
+ * The shared {@code Gson} instance for the app. {@code Gson} is thread-safe, and comments go
+ * through a hand-written adapter instead of reflection.
+ */
+public final class CommentJson {
+  public static final Gson GSON =
+      new GsonBuilder().registerTypeAdapter(Comment.class, new CommentAdapter()).create();
+
+  private CommentJson() {
+    // Disallow instances.
+  }
+
+  /** Writes and reads a comment field by field. Null fields are left out. */
+  private static final class CommentAdapter extends TypeAdapter<Comment> {
+    @Override
+    public void write(JsonWriter out, Comment comment) throws IOException {
+      if (comment == null) {
+        out.nullValue();
+        return;
+      }
+
+      out.beginObject();
+      out.name("id").value(comment.getId());
+      writeString(out, "message", comment.getMessage());
+      writeString(out, "author", comment.getAuthor());
+      out.name("commentLimit").value(comment.getCommentLimit());
+      writeString(out, "imageURL", comment.getImageURL());
+      writeString(out, "thumbnailURL", comment.getThumbnailURL());
+      out.name("timestamp").value(comment.getTimestamp());
+      if (comment.getParentId() != 0) {
+        out.name("parentId").value(comment.getParentId());
+      } else {
+        out.name("replyCount").value(comment.getReplyCount());
+      }
+      out.endObject();
+    }
+
+    @Override
+    public Comment read(JsonReader in) throws IOException {
+      if (in.peek() == JsonToken.NULL) {
+        in.nextNull();
+        return null;
+      }
+
+      long id = 0;
+      String message = null;
+      String author = null;
+      int commentLimit = 0;
+      String imageURL = null;
+      String thumbnailURL = null;
+      long timestamp = 0;
+      long parentId = 0;
+      long replyCount = 0;
+
+      in.beginObject();
+      while (in.hasNext()) {
+        String name = in.nextName();
+        if (in.peek() == JsonToken.NULL) {
+          in.nextNull();
+          continue;
+        }
+
+        switch (name) {
+          case "id":
+            id = in.nextLong();
+            break;
+          case "message":
+            message = in.nextString();
+            break;
+          case "author":
+            author = in.nextString();
+            break;
+          case "commentLimit":
+            commentLimit = in.nextInt();
+            break;
+          case "imageURL":
+            imageURL = in.nextString();
+            break;
+          case "thumbnailURL":
+            thumbnailURL = in.nextString();
+            break;
+          case "timestamp":
+            timestamp = in.nextLong();
+            break;
+          case "parentId":
+            parentId = in.nextLong();
+            break;
+          case "replyCount":
+            replyCount = in.nextLong();
+            break;
+          default:
+            in.skipValue();
+        }
+      }
+      in.endObject();
+
+      return new Comment(id, message, author, commentLimit, imageURL, thumbnailURL, timestamp,
+          parentId, replyCount);
+    }
+
+    private static void writeString(JsonWriter out, String name, String value) throws IOException {
+      if (value != null) {
+        out.name(name).value(value);
+      }
+    }
+  }
+}
@@ -0,0 +1,178 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.CompositeFilterOperator;
+import com.google.appengine.api.datastore.Query.Filter;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.google.appengine.api.datastore.Query.SortDirection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Prefix search over comment messages and authors. Every comment stores the prefixes of its words
+ * in an indexed list property, which makes Datastore's built-in index the inverted index: a
+ * multi-term query is a set of equality filters that Datastore merge-joins, so its cost depends on
+ * the number of matches rather than the number of comments. Matches are read newest first, using
+ * the (searchTerms, timestamp desc) index in datastore-indexes.xml.
+ *
+ * <p>Comments saved before search was added have no terms and never match. To backfill them,
+ * export with {@code GET /admin/comments} and import the result with {@code POST
+ * /admin/comments}: the import keeps each comment's id and rewrites it with its terms.
+ */
+public final class CommentSearch {
+  /** Indexed list property holding the search terms of a comment. */
+  public static final String PROPERTY_TERMS = "searchTerms";
+
+  // Prefixes shorter than this aren't indexed, so one-letter queries only match one-letter words.
+  private final static int minPrefix = 2;
+  // Longer query terms are matched on their first maxPrefix characters, then checked in memory.
+  private final static int maxPrefix = 12;
+  // Upper bound on the matches read from Datastore before ranking.
+  private final static int maxCandidates = 500;
+
+  private CommentSearch() {
+    // Disallow instances.
+  }
+
+  /** Returns the lower-case words in {@code text}, in order and without duplicates. */
+  public static List<String> tokenize(String text) {
+    Set<String> words = new LinkedHashSet<>();
+    if (text == null) {
+      return new ArrayList<>(words);
+    }
+
+    for (String word : text.toLowerCase(Locale.ROOT).split("[^\\p{L}\\p{N}]+")) {
+      if (!word.isEmpty()) {
+        words.add(word);
+      }
+    }
+    return new ArrayList<>(words);
+  }
+
+  /** Returns the terms to index for a comment: every word prefix of its message and author. */
+  public static List<String> indexTerms(String message, String author) {
+    Set<String> terms = new LinkedHashSet<>();
+    List<String> words = tokenize(message);
+    words.addAll(tokenize(author));
+    for (String word : words) {
+      int longest = Math.min(word.length(), maxPrefix);
+      for (int length = Math.min(minPrefix, longest); length <= longest; length++) {
+        terms.add(word.substring(0, length));
+      }
+    }
+    return new ArrayList<>(terms);
+  }
+
+  /**
+   * Returns up to {@code limit} comments containing a word that starts with every term in
+   * {@code query}, best match first. Whole-word matches and author matches rank higher, then newer
+   * comments.
+   */
+  public static List<Comment> search(DatastoreService datastore, String query, int limit) {
+    List<String> terms = tokenize(query);
+    if (terms.isEmpty()) {
+      return Collections.emptyList();
+    }
+
+    List<Filter> filters = new ArrayList<>();
+    for (String term : terms) {
+      String indexed = term.substring(0, Math.min(term.length(), maxPrefix));
+      filters.add(new FilterPredicate(PROPERTY_TERMS, FilterOperator.EQUAL, indexed));
+    }
+    Query datastoreQuery = new Query(Comment.KIND);
+    datastoreQuery.setFilter(
+        filters.size() == 1 ? filters.get(0) : CompositeFilterOperator.and(filters));
+    // So that when there are more than maxCandidates matches, the newest ones are ranked.
+    datastoreQuery.addSort(Comment.PROPERTY_TIMESTAMP, SortDirection.DESCENDING);
+
+    List<ScoredComment> matches = new ArrayList<>();
+    FetchOptions fetchOptions = FetchOptions.Builder.withLimit(maxCandidates);
+    for (Entity entity : datastore.prepare(datastoreQuery).asIterable(fetchOptions)) {
+      Comment comment = Comment.fromEntity(entity);
+      int score = score(comment, terms);
+      if (score > 0) {
+        matches.add(new ScoredComment(comment, score));
+      }
+    }
+
+    Collections.sort(matches);
+    List<Comment> results = new ArrayList<>();
+    for (ScoredComment match : matches.subList(0, Math.min(limit, matches.size()))) {
+      results.add(match.comment);
+    }
+    return results;
+  }
+
+  /**
+   * Scores a candidate, or returns 0 if some term isn't the prefix of any word. This also drops
+   * candidates that only matched the truncated form of a long term.
+   */
+  private static int score(Comment comment, List<String> terms) {
+    List<String> messageWords = tokenize(comment.getMessage());
+    List<String> authorWords = tokenize(comment.getAuthor());
+
+    int score = 0;
+    for (String term : terms) {
+      int termScore = Math.max(score(messageWords, term), 2 * score(authorWords, term));
+      if (termScore == 0) {
+        return 0;
+      }
+      score += termScore;
+    }
+    return score;
+  }
+
+  /** Returns 2 for a whole-word match, 1 for a prefix match and 0 otherwise. */
+  private static int score(List<String> words, String term) {
+    int best = 0;
+    for (String word : words) {
+      if (word.equals(term)) {
+        return 2;
+      }
+      if (word.startsWith(term)) {
+        best = 1;
+      }
+    }
+    return best;
+  }
+
+  private static final class ScoredComment implements Comparable<ScoredComment> {
+    private final Comment comment;
+    private final int score;
+
+    private ScoredComment(Comment comment, int score) {
+      this.comment = comment;
+      this.score = score;
+    }
+
+    @Override
+    public int compareTo(ScoredComment other) {
+      if (score != other.score) {
+        return Integer.compare(other.score, score);
+      }
+      return Long.compare(other.comment.getTimestamp(), comment.getTimestamp());
+    }
+  }
+}
@@ -0,0 +1,133 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.PropertyProjection;
+import com.google.appengine.api.datastore.Query;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Running comment counts per {@code commentLimit} value and per author, so neither the chart nor
+ * the totals need to read every comment. Both are {@link ShardedCounter}s that {@code doPost}
+ * increments once a comment is written.
+ */
+public final class CommentStats {
+  private final static String tblLimitCounter = "CommentLimitCountShard";
+  private final static String tblAuthorCounter = "CommentAuthorCountShard";
+  private final static String tblState = "CommentStatsState";
+  // Renamed when the counters moved to shards, so they are rebuilt once in the new layout.
+  private final static String stateName = "sharded";
+
+  private final static String tblComment = Comment.KIND;
+  private final static String tblLimit = Comment.PROPERTY_LIMIT;
+  private final static String tblAuthor = Comment.PROPERTY_AUTHOR;
+
+  // Comments saved before the limit field existed are counted under this key.
+  private final static String noLimit = "none";
+
+  private final DatastoreService datastore;
+  private final ShardedCounter limitCounts;
+  private final ShardedCounter authorCounts;
+
+  // Once the counters exist they stay, so only the first check per instance reads Datastore.
+  private volatile boolean initialized;
+
+  public CommentStats(DatastoreService datastore, int shardCount, long cacheMillis) {
+    this.datastore = datastore;
+    this.limitCounts = new ShardedCounter(datastore, tblLimitCounter, shardCount, cacheMillis);
+    this.authorCounts = new ShardedCounter(datastore, tblAuthorCounter, shardCount, cacheMillis);
+  }
+
+  /**
+   * Counts a new comment. Does nothing until the counters have been built, because
+   * {@link #getCounts} will count this comment when it builds them.
+   */
+  public void increment(int limit, String author) {
+    if (!isInitialized()) {
+      return;
+    }
+    limitCounts.increment(String.valueOf(limit), 1);
+    authorCounts.increment(String.valueOf(author), 1);
+  }
+
+  /**
+   * Returns the number of comments for each {@code commentLimit} value. The first call after
+   * deployment builds the counters from the {@code Comment} kind.
+   */
+  public Map<String, Long> getCounts() {
+    if (!isInitialized()) {
+      rebuild();
+    }
+    return limitCounts.getAll();
+  }
+
+  /** Returns the number of comments posted under each author name. */
+  public Map<String, Long> getAuthorCounts() {
+    if (!isInitialized()) {
+      rebuild();
+    }
+    return authorCounts.getAll();
+  }
+
+  /** Returns the number of comments. */
+  public long getTotal() {
+    long total = 0;
+    for (long count : getCounts().values()) {
+      total += count;
+    }
+    return total;
+  }
+
+  /**
+   * Recounts every comment and overwrites the counters. Uses projection queries so only the
+   * {@code limit} and {@code name} properties are read. A comment posted while this runs may be
+   * missed.
+   */
+  public void rebuild() {
+    limitCounts.setAll(countBy(tblLimit, noLimit));
+    authorCounts.setAll(countBy(tblAuthor, "null"));
+    datastore.put(new Entity(tblState, stateName));
+    initialized = true;
+  }
+
+  private Map<String, Long> countBy(String property, String missing) {
+    Query query =
+        new Query(tblComment).addProjection(new PropertyProjection(property, String.class));
+
+    Map<String, Long> counts = new TreeMap<>();
+    for (Entity entity : datastore.prepare(query).asIterable()) {
+      String value = (String) entity.getProperty(property);
+      counts.merge(value == null ? missing : value, 1L, Long::sum);
+    }
+    return counts;
+  }
+
+  private boolean isInitialized() {
+    if (!initialized) {
+      try {
+        datastore.get(KeyFactory.createKey(tblState, stateName));
+        initialized = true;
+      } catch (EntityNotFoundException e) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
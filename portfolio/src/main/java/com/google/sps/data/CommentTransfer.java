@@ -0,0 +1,320 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import com.google.appengine.api.datastore.AsyncDatastoreService;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.KeyRange;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.CompositeFilterOperator;
+import com.google.appengine.api.datastore.Query.Filter;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.google.appengine.api.datastore.Query.SortDirection;
+import com.google.gson.JsonParseException;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Bulk export and import of comments as JSON lines, one {@link CommentJson} object per line.
+ * Exports walk the {@code Comment} kind in key order over an id range, each comment followed by
+ * its replies, so a large export can be split with {@link #splitPoints} and run in parallel, and
+ * an interrupted one resumes after the last comment it wrote. Imports keep each comment's id and
+ * put replies back under their thread, so re-running one overwrites instead of duplicating, and
+ * report the line to resume from if they stop early.
+ *
+ * <p>Imported ids are reserved with {@code allocateIdRange}, so Datastore never hands them out to
+ * a new comment later. Imported comments are stamped with {@link Comment#PROPERTY_UPDATED}, which
+ * tells every instance's feed that its cached pages are out of date.
+ */
+public final class CommentTransfer {
+  // Datastore takes at most 500 entities per batch put.
+  private final static int batchSize = 500;
+  private final static int maxBatchesInFlight = 4;
+  // Keys sampled per range when picking split points; more gives evener ranges.
+  private final static int oversampling = 32;
+  private final static String scatterProperty = "__scatter__";
+
+  /** How far an import got. */
+  public static final class ImportResult {
+    private final long imported;
+    private final long resumeAt;
+    private final String error;
+
+    private ImportResult(long imported, long resumeAt, String error) {
+      this.imported = imported;
+      this.resumeAt = resumeAt;
+      this.error = error;
+    }
+
+    /** Returns the number of comments written. */
+    public long getImported() {
+      return imported;
+    }
+
+    /** Returns the number of input lines known to be written, to pass back as {@code skip}. */
+    public long getResumeAt() {
+      return resumeAt;
+    }
+
+    /** Returns why the import stopped early, or null if it read all of its input. */
+    public String getError() {
+      return error;
+    }
+  }
+
+  private CommentTransfer() {
+    // Disallow instances.
+  }
+
+  /**
+   * Returns up to {@code ranges - 1} comment ids, in order, that split the kind into ranges of
+   * roughly equal size. Uses the {@code __scatter__} sample Datastore keeps for this purpose.
+   */
+  public static List<Long> splitPoints(DatastoreService datastore, int ranges) {
+    Query query = new Query(Comment.KIND)
+        .addSort(scatterProperty, SortDirection.ASCENDING)
+        .setKeysOnly();
+    List<Long> sample = new ArrayList<>();
+    FetchOptions fetchOptions = FetchOptions.Builder.withLimit(ranges * oversampling);
+    for (Entity entity : datastore.prepare(query).asIterable(fetchOptions)) {
+      sample.add(entity.getKey().getId());
+    }
+    Collections.sort(sample);
+
+    List<Long> points = new ArrayList<>();
+    for (int i = 1; i < ranges; i++) {
+      int index = i * sample.size() / ranges;
+      if (index >= sample.size()) {
+        break;
+      }
+      long point = sample.get(index);
+      if (points.isEmpty() || points.get(points.size() - 1) < point) {
+        points.add(point);
+      }
+    }
+    return points;
+  }
+
+  /**
+   * Writes comments with {@code startId <= id < endId} to {@code out}, one per line in id order,
+   * each followed by its replies, stopping after {@code limit} comments. A bound of 0 means
+   * unbounded. Returns the number of lines written.
+   */
+  public static long export(DatastoreService datastore, long startId, long endId, int limit,
+      Writer out) throws IOException {
+    List<Filter> filters = new ArrayList<>();
+    if (startId > 0) {
+      filters.add(new FilterPredicate(Entity.KEY_RESERVED_PROPERTY,
+          FilterOperator.GREATER_THAN_OR_EQUAL, KeyFactory.createKey(Comment.KIND, startId)));
+    }
+    if (endId > 0) {
+      filters.add(new FilterPredicate(Entity.KEY_RESERVED_PROPERTY, FilterOperator.LESS_THAN,
+          KeyFactory.createKey(Comment.KIND, endId)));
+    }
+
+    Query query = new Query(Comment.KIND)
+        .addSort(Entity.KEY_RESERVED_PROPERTY, SortDirection.ASCENDING);
+    if (filters.size() == 1) {
+      query.setFilter(filters.get(0));
+    } else if (filters.size() > 1) {
+      query.setFilter(CompositeFilterOperator.and(filters));
+    }
+
+    // Stream in large chunks; the query's iterator fetches the next one as needed.
+    FetchOptions fetchOptions = FetchOptions.Builder.withChunkSize(batchSize);
+    if (limit > 0) {
+      fetchOptions.limit(limit);
+    }
+    long count = 0;
+    for (Entity entity : datastore.prepare(query).asIterable(fetchOptions)) {
+      out.write(CommentJson.GSON.toJson(Comment.fromEntity(entity)));
+      out.write('\n');
+      count++;
+
+      // A thread is one entity group, so its replies are one strongly consistent ancestor query.
+      Query replies = new Query(Comment.REPLY_KIND)
+          .setAncestor(entity.getKey())
+          .addSort(Entity.KEY_RESERVED_PROPERTY, SortDirection.ASCENDING);
+      for (Entity reply : datastore.prepare(replies).asIterable(
+          FetchOptions.Builder.withChunkSize(batchSize))) {
+        out.write(CommentJson.GSON.toJson(Comment.fromEntity(reply)));
+        out.write('\n');
+        count++;
+      }
+    }
+    out.flush();
+    return count;
+  }
+
+  /**
+   * Reads JSON lines from {@code in}, skipping the first {@code skip}, and writes them in batched
+   * puts with a few batches in flight at once. Blank lines are ignored. Stops at the first line
+   * that isn't a comment or the first failed batch.
+   */
+  public static ImportResult importLines(DatastoreService datastore,
+      AsyncDatastoreService asyncDatastore, BufferedReader in, long skip) throws IOException {
+    Importer importer = new Importer(datastore, asyncDatastore, skip);
+    List<Entity> batch = new ArrayList<>();
+    long importedAt = System.currentTimeMillis();
+
+    long line = 0;
+    String text;
+    while (importer.error == null && (text = in.readLine()) != null) {
+      line++;
+      if (line <= skip || text.trim().isEmpty()) {
+        continue;
+      }
+
+      Comment comment;
+      try {
+        comment = CommentJson.GSON.fromJson(text, Comment.class);
+      } catch (JsonParseException | NumberFormatException e) {
+        comment = null;
+      }
+      if (comment == null) {
+        importer.error = "Line " + line + " is not a comment.";
+        // Everything before this line can still be written.
+        line--;
+        break;
+      }
+
+      Entity entity = comment.toEntity();
+      if (comment.getParentId() == 0) {
+        entity.setProperty(Comment.PROPERTY_UPDATED, importedAt);
+      }
+      batch.add(entity);
+      if (batch.size() == batchSize) {
+        importer.send(batch, line);
+        batch = new ArrayList<>();
+      }
+    }
+
+    if (!batch.isEmpty()) {
+      importer.send(batch, line);
+    }
+    importer.drain();
+    return new ImportResult(importer.imported, importer.committed, importer.error);
+  }
+
+  /**
+   * Keeps up to {@code maxBatchesInFlight} puts outstanding, and tracks the last input line
+   * before which every batch has been written.
+   */
+  private static final class Importer {
+    private final DatastoreService datastore;
+    private final AsyncDatastoreService asyncDatastore;
+    private final Deque<Future<List<Key>>> inFlight = new ArrayDeque<>();
+    private final Deque<Long> inFlightEnds = new ArrayDeque<>();
+
+    private long imported;
+    private long committed;
+    private boolean failed;
+    private String error;
+
+    Importer(DatastoreService datastore, AsyncDatastoreService asyncDatastore, long skip) {
+      this.datastore = datastore;
+      this.asyncDatastore = asyncDatastore;
+      this.committed = skip;
+    }
+
+    void send(List<Entity> batch, long endLine) {
+      if (failed) {
+        return;
+      }
+      if (inFlight.size() == maxBatchesInFlight) {
+        awaitOldest();
+      }
+      try {
+        reserveIds(batch);
+      } catch (RuntimeException e) {
+        fail("Could not reserve the ids of the batch ending at line " + endLine + ": "
+            + e.getMessage());
+        return;
+      }
+      inFlight.add(asyncDatastore.put(batch));
+      inFlightEnds.add(endLine);
+    }
+
+    /**
+     * Reserves the ids in {@code batch}, one range per kind and parent, before they are written. A
+     * range may cover ids that aren't in the batch; that only means Datastore won't hand those out
+     * either. A COLLISION result only means the ids are in use already, as when an import is
+     * re-run.
+     */
+    private void reserveIds(List<Entity> batch) {
+      // Keyed by kind and parent.
+      Map<List<Object>, KeyRange> ranges = new LinkedHashMap<>();
+      for (Entity entity : batch) {
+        Key key = entity.getKey();
+        if (!key.isComplete() || key.getId() == 0) {
+          continue;
+        }
+        ranges.merge(Arrays.asList(key.getKind(), key.getParent()),
+            new KeyRange(key.getParent(), key.getKind(), key.getId(), key.getId()),
+            (a, b) -> new KeyRange(key.getParent(), key.getKind(),
+                Math.min(a.getStart().getId(), b.getStart().getId()),
+                Math.max(a.getEnd().getId(), b.getEnd().getId())));
+      }
+
+      for (KeyRange range : ranges.values()) {
+        datastore.allocateIdRange(range);
+      }
+    }
+
+    void drain() {
+      while (!inFlight.isEmpty()) {
+        awaitOldest();
+      }
+    }
+
+    private void awaitOldest() {
+      long endLine = inFlightEnds.remove();
+      try {
+        imported += inFlight.remove().get().size();
+        if (!failed) {
+          committed = endLine;
+        }
+      } catch (ExecutionException e) {
+        fail("Batch ending at line " + endLine + " failed: " + e.getCause().getMessage());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        fail("Interrupted while writing the batch ending at line " + endLine + ".");
+      }
+    }
+
+    private void fail(String message) {
+      failed = true;
+      if (error == null) {
+        error = message;
+      }
+    }
+  }
+}
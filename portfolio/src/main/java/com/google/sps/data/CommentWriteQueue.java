@@ -0,0 +1,235 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import com.google.appengine.api.datastore.AsyncDatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Groups comment writes from concurrent requests into batched {@code put} calls. The first
+ * request to arrive becomes the leader: it waits up to {@code maxDelayMillis} for others to join
+ * (or for the batch to fill), then writes the whole batch with one {@link AsyncDatastoreService}
+ * call. App Engine doesn't let background threads outlive a request, so the flush always runs on
+ * a request thread.
+ */
+public final class CommentWriteQueue {
+  /** When {@link #submit} returns relative to the Datastore write. */
+  public enum Durability {
+    /** Wait until the batch holding the comment has been committed. */
+    ACKNOWLEDGED,
+    /** Return as soon as the comment is queued. A crash before the flush loses it. */
+    DEFERRED
+  }
+
+  /**
+   * Thrown by {@link #submit} in {@code ACKNOWLEDGED} mode when the write outlives the ack
+   * timeout. The write is still queued or in flight, so its outcome is unknown until
+   * {@link #getWrite} completes.
+   */
+  public static final class UnacknowledgedException extends RejectedExecutionException {
+    private final transient CompletableFuture<Key> write;
+
+    private UnacknowledgedException(String message, Throwable cause,
+        CompletableFuture<Key> write) {
+      super(message, cause);
+      this.write = write;
+    }
+
+    /** Returns the future for the write's key, which completes once the batch is written. */
+    public CompletableFuture<Key> getWrite() {
+      return write;
+    }
+  }
+
+  private static final class PendingWrite {
+    private final Entity entity;
+    private final CompletableFuture<Key> future = new CompletableFuture<>();
+
+    private PendingWrite(Entity entity) {
+      this.entity = entity;
+    }
+  }
+
+  // Longer than a Datastore put takes, shorter than the 60 second request deadline.
+  private final static long ackTimeoutMillis = 30 * 1000;
+
+  private final AsyncDatastoreService datastore;
+  private final Durability durability;
+  private final int batchSize;
+  private final long maxDelayMillis;
+
+  // Bounds the number of queued writes; requests that can't get a permit are rejected.
+  private final Semaphore permits;
+
+  private final Object lock = new Object();
+  private List<PendingWrite> pending = new ArrayList<>();
+  private boolean leaderWaiting;
+
+  public CommentWriteQueue(AsyncDatastoreService datastore, Durability durability, int batchSize,
+      long maxDelayMillis, int maxPending) {
+    this.datastore = datastore;
+    this.durability = durability;
+    this.batchSize = batchSize;
+    this.maxDelayMillis = maxDelayMillis;
+    this.permits = new Semaphore(maxPending);
+  }
+
+  /**
+   * Queues {@code entity} for writing and returns a future for its key.
+   *
+   * @throws UnacknowledgedException in {@code ACKNOWLEDGED} mode if the write isn't acknowledged
+   *     within {@code ackTimeoutMillis}; the write may still land after that
+   * @throws RejectedExecutionException if the queue stays full for longer than the batch delay
+   */
+  public CompletableFuture<Key> submit(Entity entity) {
+    PendingWrite write = new PendingWrite(entity);
+    boolean leader;
+    try {
+      if (!permits.tryAcquire(maxDelayMillis, TimeUnit.MILLISECONDS)) {
+        throw new RejectedExecutionException("Comment write queue is full.");
+      }
+
+      synchronized (lock) {
+        pending.add(write);
+        leader = !leaderWaiting;
+        leaderWaiting = true;
+        if (pending.size() >= batchSize) {
+          lock.notifyAll();
+        }
+      }
+
+      if (leader) {
+        flush(waitForBatch());
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RejectedExecutionException("Interrupted while queueing a comment.", e);
+    }
+
+    if (durability == Durability.ACKNOWLEDGED) {
+      try {
+        write.future.get(ackTimeoutMillis, TimeUnit.MILLISECONDS);
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof RuntimeException) {
+          throw (RuntimeException) e.getCause();
+        }
+        throw new CompletionException(e.getCause());
+      } catch (TimeoutException e) {
+        throw new UnacknowledgedException(
+            "Comment write was not acknowledged in time.", e, write.future);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new UnacknowledgedException(
+            "Interrupted while writing a comment.", e, write.future);
+      }
+    }
+    return write.future;
+  }
+
+  /**
+   * Waits until the batch is full or the delay has passed, then takes every pending write. If the
+   * wait is cut short, the pending writes are failed so their submitters don't wait forever, and
+   * the next submit becomes the leader.
+   */
+  private List<PendingWrite> waitForBatch() throws InterruptedException {
+    synchronized (lock) {
+      List<PendingWrite> batch = null;
+      try {
+        long deadline = System.currentTimeMillis() + maxDelayMillis;
+        long remaining = maxDelayMillis;
+        while (pending.size() < batchSize && remaining > 0) {
+          lock.wait(remaining);
+          remaining = deadline - System.currentTimeMillis();
+        }
+        batch = pending;
+        return batch;
+      } finally {
+        List<PendingWrite> taken = pending;
+        pending = new ArrayList<>();
+        leaderWaiting = false;
+        if (batch == null) {
+          fail(taken, new RejectedExecutionException("The batch leader stopped waiting."));
+          permits.release(taken.size());
+        }
+      }
+    }
+  }
+
+  /**
+   * Writes {@code writes} in chunks of {@code batchSize} and completes their futures. A chunk that
+   * fails as a whole is retried one entity at a time, so one bad comment doesn't fail the others.
+   * Whatever happens, every future is completed and every permit released.
+   */
+  private void flush(List<PendingWrite> writes) {
+    int start = 0;
+    try {
+      for (; start < writes.size(); start += batchSize) {
+        writeChunk(writes.subList(start, Math.min(start + batchSize, writes.size())));
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      fail(writes.subList(start, writes.size()), e);
+    } catch (RuntimeException | Error e) {
+      fail(writes.subList(start, writes.size()), e);
+      throw e;
+    } finally {
+      permits.release(writes.size());
+    }
+  }
+
+  private void writeChunk(List<PendingWrite> chunk) throws InterruptedException {
+    List<Entity> entities = new ArrayList<>();
+    for (PendingWrite write : chunk) {
+      entities.add(write.entity);
+    }
+
+    try {
+      List<Key> keys = datastore.put(entities).get();
+      for (int i = 0; i < chunk.size(); i++) {
+        chunk.get(i).future.complete(keys.get(i));
+      }
+      return;
+    } catch (ExecutionException e) {
+      if (chunk.size() == 1) {
+        chunk.get(0).future.completeExceptionally(e.getCause());
+        return;
+      }
+    }
+
+    for (PendingWrite write : chunk) {
+      try {
+        write.future.complete(datastore.put(write.entity).get());
+      } catch (ExecutionException e) {
+        write.future.completeExceptionally(e.getCause());
+      }
+    }
+  }
+
+  private static void fail(List<PendingWrite> writes, Throwable cause) {
+    for (PendingWrite write : writes) {
+      write.future.completeExceptionally(cause);
+    }
+  }
+}
@@ -0,0 +1,115 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Rejects a comment whose author already posted the same message recently. Comments are compared
+ * by a hash of the author and the normalized message, so case and spacing changes still count as
+ * duplicates, while two people may both post "nice". Comments with no text, such as image-only
+ * ones, are never duplicates. Recent hashes live in two Bloom filters that rotate every
+ * {@code windowMillis}, which keeps memory fixed; a hash is remembered for between one and two
+ * windows. A Bloom false positive rejects a new message, at the rate chosen in the constructor.
+ *
+ * <p>A hash only goes into the filters once its comment is written, since a Bloom filter can't
+ * forget a hash whose write failed. Until then it is held in a small exact set of in-flight
+ * messages, which also turns away a second copy posted while the first is being written.
+ */
+public final class DuplicateCheck implements CommentCheck {
+  private final int expectedPerWindow;
+  private final double falsePositiveRate;
+  private final long windowMillis;
+
+  private BloomFilter current;
+  private BloomFilter previous;
+  private long windowStart;
+  private final Set<ByteBuffer> inFlight = new HashSet<>();
+
+  public DuplicateCheck(int expectedPerWindow, double falsePositiveRate, long windowMillis) {
+    this.expectedPerWindow = expectedPerWindow;
+    this.falsePositiveRate = falsePositiveRate;
+    this.windowMillis = windowMillis;
+    this.current = new BloomFilter(expectedPerWindow, falsePositiveRate);
+    this.previous = new BloomFilter(expectedPerWindow, falsePositiveRate);
+    this.windowStart = System.currentTimeMillis();
+  }
+
+  @Override
+  public synchronized Rejection check(Comment comment) {
+    long now = System.currentTimeMillis();
+    if (now - windowStart >= windowMillis) {
+      // After a quiet spell of two windows or more, the current filter is too old to keep.
+      previous = now - windowStart >= 2 * windowMillis
+          ? new BloomFilter(expectedPerWindow, falsePositiveRate)
+          : current;
+      current = new BloomFilter(expectedPerWindow, falsePositiveRate);
+      windowStart = now;
+    }
+
+    byte[] hash = hash(comment.getAuthor(), comment.getMessage());
+    if (hash == null) {
+      return null;
+    }
+    if (current.mightContain(hash) || previous.mightContain(hash)
+        || !inFlight.add(ByteBuffer.wrap(hash))) {
+      return new Rejection(409, "This comment was already posted.");
+    }
+    return null;
+  }
+
+  @Override
+  public synchronized void written(Comment comment) {
+    byte[] hash = hash(comment.getAuthor(), comment.getMessage());
+    if (hash != null) {
+      inFlight.remove(ByteBuffer.wrap(hash));
+      current.add(hash);
+    }
+  }
+
+  @Override
+  public synchronized void failed(Comment comment) {
+    byte[] hash = hash(comment.getAuthor(), comment.getMessage());
+    if (hash != null) {
+      inFlight.remove(ByteBuffer.wrap(hash));
+    }
+  }
+
+  /**
+   * Returns the SHA-256 of the author and the message, with the message lower-cased and runs of
+   * whitespace collapsed, or null if the message is empty.
+   */
+  static byte[] hash(String author, String message) {
+    String normalized =
+        message == null ? "" : message.trim().replaceAll("\\s+", " ").toLowerCase(Locale.ROOT);
+    if (normalized.isEmpty()) {
+      return null;
+    }
+    // A NUL can't be typed into the form, so it keeps "ab" + "c" apart from "a" + "bc".
+    String key = String.valueOf(author) + '\0' + normalized;
+    try {
+      return MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+    } catch (NoSuchAlgorithmException e) {
+      // Every Java platform is required to support SHA-256.
+      throw new IllegalStateException(e);
+    }
+  }
+}
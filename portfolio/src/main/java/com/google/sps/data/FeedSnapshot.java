@@ -0,0 +1,198 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * The first page of the feed, rendered once and named by a hash of its bytes so it can be cached
+ * forever at the edge. Writes only mark the snapshot stale; it is re-rendered on the next read,
+ * at most once per {@code minIntervalMillis} so a burst of comments costs one render. It is also
+ * re-rendered once older than {@code maxAgeMillis}, to pick up writes made on other instances.
+ *
+ * <p>Each render is also put in memcache under its name, so a snapshot request that lands on
+ * another instance still finds it. The last few snapshots are kept in memory as well.
+ *
+ * <p>Changes are versioned by the feed version they produced. A reader that asks for at least a
+ * given version, like a poster coming back to the page, skips the debounce and gets a render that
+ * started after this instance heard of that version.
+ */
+public final class FeedSnapshot {
+  private final static String memcachePrefix = "feed-snapshot:";
+  // Long enough for any edge-cached redirect to still find its snapshot.
+  private final static int memcacheSeconds = 60 * 60;
+
+  /** A rendered snapshot and its content-addressed name. */
+  public static final class Snapshot {
+    private final String name;
+    private final byte[] data;
+
+    private Snapshot(String name, byte[] data) {
+      this.name = name;
+      this.data = data;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public byte[] getData() {
+      return data;
+    }
+  }
+
+  private final MemcacheService memcache;
+  private final long minIntervalMillis;
+  private final long maxAgeMillis;
+  private final Map<String, Snapshot> recent;
+
+  private Snapshot current;
+  private long renderedAt;
+  private boolean stale;
+  private boolean rendering;
+  // The newest version this instance has been told about, and the one the current render covers.
+  private long changedVersion;
+  private long renderedVersion;
+
+  public FeedSnapshot(
+      MemcacheService memcache, long minIntervalMillis, long maxAgeMillis, int keep) {
+    this.memcache = memcache;
+    this.minIntervalMillis = minIntervalMillis;
+    this.maxAgeMillis = maxAgeMillis;
+
+    // Insertion order is render order, so the eldest entry is the oldest snapshot.
+    this.recent = new LinkedHashMap<String, Snapshot>() {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Snapshot> eldest) {
+        return size() > keep;
+      }
+    };
+  }
+
+  /**
+   * Returns the current snapshot, calling {@code render} first if there is none yet, or if it is
+   * stale and the debounce interval has passed, or if it has reached its maximum age, or if it
+   * covers a version older than {@code minVersion}. Only one caller renders at a time, outside
+   * the lock; the others get the current snapshot meanwhile, and only wait if it is missing or
+   * older than they asked for. If the render throws, the next caller tries again.
+   */
+  public Snapshot get(Supplier<byte[]> render, long minVersion) {
+    long startedAt;
+    long version;
+    synchronized (this) {
+      while (true) {
+        startedAt = System.currentTimeMillis();
+        long age = startedAt - renderedAt;
+        boolean usable = current != null && renderedVersion >= minVersion;
+        boolean due = !usable || (stale && age >= minIntervalMillis) || age >= maxAgeMillis;
+        if (!due || (rendering && usable)) {
+          return current;
+        }
+        if (!rendering) {
+          break;
+        }
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IllegalStateException("Interrupted while waiting for a snapshot.", e);
+        }
+      }
+      // Cleared now so an invalidate() during the render marks the new snapshot stale.
+      rendering = true;
+      stale = false;
+      changedVersion = Math.max(changedVersion, minVersion);
+      version = changedVersion;
+    }
+
+    Snapshot rendered = null;
+    try {
+      byte[] data = render.get();
+      rendered = new Snapshot(hash(data) + ".json", data);
+    } finally {
+      synchronized (this) {
+        rendering = false;
+        if (rendered != null) {
+          current = rendered;
+          recent.put(rendered.getName(), rendered);
+          renderedAt = startedAt;
+          renderedVersion = version;
+        } else {
+          stale = true;
+        }
+        notifyAll();
+      }
+    }
+
+    // Memcache errors are logged by the service and otherwise ignored.
+    memcache.put(memcachePrefix + rendered.getName(), rendered.getData(),
+        Expiration.byDeltaSeconds(memcacheSeconds));
+    return rendered;
+  }
+
+  /** Returns the snapshot with this name, or null if neither this instance nor memcache has it. */
+  public Snapshot find(String name) {
+    synchronized (this) {
+      Snapshot snapshot = recent.get(name);
+      if (snapshot != null) {
+        return snapshot;
+      }
+    }
+
+    Object data = memcache.get(memcachePrefix + name);
+    if (!(data instanceof byte[])) {
+      return null;
+    }
+    Snapshot snapshot = new Snapshot(name, (byte[]) data);
+    synchronized (this) {
+      recent.put(name, snapshot);
+    }
+    return snapshot;
+  }
+
+  /** Returns true if this instance hasn't yet heard of a change at {@code version}. */
+  public synchronized boolean isBehind(long version) {
+    return changedVersion < version;
+  }
+
+  /** Marks the snapshot as out of date after a change that produced feed {@code version}. */
+  public synchronized void invalidate(long version) {
+    stale = true;
+    changedVersion = Math.max(changedVersion, version);
+  }
+
+  /** Returns the first 16 hex digits of the SHA-256 of {@code data}. */
+  private static String hash(byte[] data) {
+    byte[] digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256").digest(data);
+    } catch (NoSuchAlgorithmException e) {
+      // Every Java platform is required to support SHA-256.
+      throw new IllegalStateException(e);
+    }
+
+    StringBuilder name = new StringBuilder();
+    for (int i = 0; i < 8; i++) {
+      name.append(String.format("%02x", digest[i]));
+    }
+    return name.toString();
+  }
+}
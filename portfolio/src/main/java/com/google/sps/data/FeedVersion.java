@@ -0,0 +1,93 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import com.google.appengine.api.datastore.DatastoreTimeoutException;
+import com.google.apphosting.api.ApiProxy.ApiDeadlineExceededException;
+import java.util.function.LongSupplier;
+
+/**
+ * Version of the comment feed, used for conditional GETs. The version is the time of the newest
+ * change to the feed, a new comment or a folded reply count: changes on this instance bump it
+ * directly, and it is re-read from Datastore at most once per {@code refreshMillis} to notice
+ * changes made on other instances.
+ *
+ * <p>The re-read runs outside the lock, one caller at a time, while the others keep using the
+ * last known version. If Datastore times out, the last known version is kept until the next
+ * refresh is due, so a slow Datastore doesn't stop the feed from serving its cached pages.
+ */
+public final class FeedVersion {
+  private final long refreshMillis;
+
+  private long version;
+  private long checkedAt;
+  private boolean known;
+  private boolean refreshing;
+
+  public FeedVersion(long refreshMillis) {
+    this.refreshMillis = refreshMillis;
+  }
+
+  /**
+   * Returns the current version, calling {@code newestTimestamp} only on a cold start or once the
+   * last check is older than the refresh interval. Only a cold start waits for the call.
+   */
+  public long get(LongSupplier newestTimestamp) {
+    long now;
+    synchronized (this) {
+      while (true) {
+        now = System.currentTimeMillis();
+        boolean due = !known || now - checkedAt > refreshMillis;
+        if (!due || (refreshing && known)) {
+          return version;
+        }
+        if (!refreshing) {
+          break;
+        }
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IllegalStateException("Interrupted while reading the feed version.", e);
+        }
+      }
+      refreshing = true;
+    }
+
+    long newest = -1;
+    try {
+      newest = newestTimestamp.getAsLong();
+    } catch (DatastoreTimeoutException | ApiDeadlineExceededException e) {
+      // Keep the last known version. With none yet, the current time can't match any validator a
+      // client already holds, so the feed is served in full.
+    } finally {
+      synchronized (this) {
+        version = Math.max(version, newest >= 0 ? newest : known ? version : now);
+        checkedAt = now;
+        known = true;
+        refreshing = false;
+        notifyAll();
+      }
+    }
+    synchronized (this) {
+      return version;
+    }
+  }
+
+  /** Records a change made at {@code timestamp}. The version never goes backwards. */
+  public synchronized void bump(long timestamp) {
+    version = Math.max(version, timestamp);
+  }
+}
@@ -0,0 +1,106 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of non-negative longs in log-linear buckets, in the style of
+ * HdrHistogram: each power of two is split into eight equal buckets, so any recorded value is
+ * known to within 12.5% while the whole range up to 2^40 needs only a few hundred counters.
+ */
+public final class LogHistogram {
+  private final static int subBits = 3;
+  private final static int subBuckets = 1 << subBits;
+  private final static int maxMagnitude = 40;
+  private final static int bucketCount = subBuckets + (maxMagnitude - subBits + 1) * subBuckets;
+
+  private final AtomicLongArray counts = new AtomicLongArray(bucketCount);
+  private final AtomicLong count = new AtomicLong();
+  private final AtomicLong sum = new AtomicLong();
+
+  public void record(long value) {
+    value = Math.max(0, value);
+    counts.incrementAndGet(bucketIndex(value));
+    count.incrementAndGet();
+    sum.addAndGet(value);
+  }
+
+  public long getCount() {
+    return count.get();
+  }
+
+  public long getSum() {
+    return sum.get();
+  }
+
+  /**
+   * Returns how many recorded values are below {@code bound}. Exact when {@code bound} is a power
+   * of two, since those fall on bucket edges.
+   */
+  public long countBelow(long bound) {
+    long below = 0;
+    for (int i = 0; i < bucketCount && lowerBound(i + 1) <= bound; i++) {
+      below += counts.get(i);
+    }
+    return below;
+  }
+
+  /** Returns the upper edge of the bucket holding the value at {@code percentile} (0 to 100). */
+  public long valueAtPercentile(double percentile) {
+    long total = 0;
+    long[] snapshot = new long[bucketCount];
+    for (int i = 0; i < bucketCount; i++) {
+      snapshot[i] = counts.get(i);
+      total += snapshot[i];
+    }
+    if (total == 0) {
+      return 0;
+    }
+
+    long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+    long seen = 0;
+    for (int i = 0; i < bucketCount; i++) {
+      seen += snapshot[i];
+      if (seen >= rank) {
+        return lowerBound(i + 1) - 1;
+      }
+    }
+    return lowerBound(bucketCount) - 1;
+  }
+
+  private static int bucketIndex(long value) {
+    if (value < subBuckets) {
+      return (int) value;
+    }
+    int magnitude = 63 - Long.numberOfLeadingZeros(value);
+    if (magnitude > maxMagnitude) {
+      return bucketCount - 1;
+    }
+    int sub = (int) (value >>> (magnitude - subBits)) & (subBuckets - 1);
+    return subBuckets + (magnitude - subBits) * subBuckets + sub;
+  }
+
+  /** Returns the smallest value that lands in bucket {@code index}. */
+  private static long lowerBound(int index) {
+    if (index < subBuckets) {
+      return index;
+    }
+    int magnitude = subBits + (index - subBuckets) / subBuckets;
+    int sub = (index - subBuckets) % subBuckets;
+    return (long) (subBuckets + sub) << (magnitude - subBits);
+  }
+}
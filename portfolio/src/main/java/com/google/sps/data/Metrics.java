@@ -0,0 +1,184 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Request and span metrics for this instance, written out in the Prometheus text format. Each
+ * route gets a latency histogram, a response size histogram and error counts; each span (a
+ * Datastore query, a Blobstore lookup, JSON encoding) gets a latency histogram. Latencies are
+ * recorded in microseconds and exported in seconds.
+ */
+public final class Metrics {
+  private final static String prefix = "portfolio_";
+  // Unmapped paths would otherwise each get their own series.
+  private final static int maxRoutes = 64;
+  private final static String otherRoute = "other";
+  private final static double[] percentiles = {50, 90, 99};
+
+  /** Times a span from creation until {@link #close}, for use in try-with-resources. */
+  public final class Span implements AutoCloseable {
+    private final String name;
+    private final long start = System.nanoTime();
+
+    private Span(String name) {
+      this.name = name;
+    }
+
+    @Override
+    public void close() {
+      spans.computeIfAbsent(name, key -> new LogHistogram())
+          .record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+    }
+  }
+
+  private static final class RouteStats {
+    private final LogHistogram latency = new LogHistogram();
+    private final LogHistogram size = new LogHistogram();
+    private final AtomicLong clientErrors = new AtomicLong();
+    private final AtomicLong serverErrors = new AtomicLong();
+  }
+
+  private static final class Source {
+    private final String type;
+    private final String help;
+    private final LongSupplier value;
+
+    private Source(String type, String help, LongSupplier value) {
+      this.type = type;
+      this.help = help;
+      this.value = value;
+    }
+  }
+
+  private final Map<String, RouteStats> routes = new ConcurrentSkipListMap<>();
+  private final Map<String, LogHistogram> spans = new ConcurrentSkipListMap<>();
+  private final Map<String, Source> sources = new ConcurrentSkipListMap<>();
+
+  /** Records a finished request to {@code route}. */
+  public void recordRequest(String route, int status, long nanos, long bytes) {
+    RouteStats stats = routes.get(route);
+    if (stats == null) {
+      if (routes.size() >= maxRoutes) {
+        route = otherRoute;
+      }
+      stats = routes.computeIfAbsent(route, key -> new RouteStats());
+    }
+
+    stats.latency.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+    stats.size.record(bytes);
+    if (status >= 500) {
+      stats.serverErrors.incrementAndGet();
+    } else if (status >= 400) {
+      stats.clientErrors.incrementAndGet();
+    }
+  }
+
+  /** Starts timing the span {@code name}. */
+  public Span span(String name) {
+    return new Span(name);
+  }
+
+  /** Exports a count kept elsewhere, such as cache hits, read when metrics are written. */
+  public void registerCounter(String name, String help, LongSupplier value) {
+    sources.put(prefix + name, new Source("counter", help, value));
+  }
+
+  /** Exports a level kept elsewhere, such as a pool size, read when metrics are written. */
+  public void registerGauge(String name, String help, LongSupplier value) {
+    sources.put(prefix + name, new Source("gauge", help, value));
+  }
+
+  /** Writes every metric in the Prometheus text exposition format. */
+  public void write(Writer out) throws IOException {
+    String latency = prefix + "request_duration_seconds";
+    header(out, latency, "histogram", "Time to serve a request, by route.");
+    for (Map.Entry<String, RouteStats> route : routes.entrySet()) {
+      writeHistogram(out, latency, "route", route.getKey(), route.getValue().latency, 7, 24, 1e6);
+    }
+
+    String size = prefix + "response_size_bytes";
+    header(out, size, "histogram", "Bytes written in the response body, by route.");
+    for (Map.Entry<String, RouteStats> route : routes.entrySet()) {
+      writeHistogram(out, size, "route", route.getKey(), route.getValue().size, 6, 20, 1);
+    }
+
+    String errors = prefix + "request_errors_total";
+    header(out, errors, "counter", "Requests answered with a 4xx or 5xx status, by route.");
+    for (Map.Entry<String, RouteStats> route : routes.entrySet()) {
+      String labels = "route=\"" + escape(route.getKey()) + "\",class=";
+      out.write(errors + "{" + labels + "\"4xx\"} " + route.getValue().clientErrors + "\n");
+      out.write(errors + "{" + labels + "\"5xx\"} " + route.getValue().serverErrors + "\n");
+    }
+
+    String quantiles = prefix + "request_duration_quantile_seconds";
+    header(out, quantiles, "gauge", "Request latency percentiles since the instance started.");
+    for (Map.Entry<String, RouteStats> route : routes.entrySet()) {
+      for (double percentile : percentiles) {
+        out.write(quantiles + "{route=\"" + escape(route.getKey()) + "\",quantile=\""
+            + percentile / 100 + "\"} "
+            + route.getValue().latency.valueAtPercentile(percentile) / 1e6 + "\n");
+      }
+    }
+
+    String span = prefix + "span_duration_seconds";
+    header(out, span, "histogram", "Time spent in Datastore, Blobstore and JSON encoding.");
+    for (Map.Entry<String, LogHistogram> entry : spans.entrySet()) {
+      writeHistogram(out, span, "span", entry.getKey(), entry.getValue(), 4, 24, 1e6);
+    }
+
+    for (Map.Entry<String, Source> entry : sources.entrySet()) {
+      Source source = entry.getValue();
+      header(out, entry.getKey(), source.type, source.help);
+      out.write(entry.getKey() + " " + source.value.getAsLong() + "\n");
+    }
+  }
+
+  private static void header(Writer out, String name, String type, String help)
+      throws IOException {
+    out.write("# HELP " + name + " " + help + "\n");
+    out.write("# TYPE " + name + " " + type + "\n");
+  }
+
+  /**
+   * Writes cumulative buckets at powers of two from 2^{@code minPower} to 2^{@code maxPower},
+   * which fall on the histogram's bucket edges, scaled down by {@code unit}.
+   */
+  private static void writeHistogram(Writer out, String name, String label, String value,
+      LogHistogram histogram, int minPower, int maxPower, double unit) throws IOException {
+    String labels = label + "=\"" + escape(value) + "\"";
+    // Read the count first so no bucket can exceed it.
+    long count = histogram.getCount();
+    for (int power = minPower; power <= maxPower; power++) {
+      long bound = 1L << power;
+      long below = Math.min(count, histogram.countBelow(bound));
+      out.write(name + "_bucket{" + labels + ",le=\"" + bound / unit + "\"} " + below + "\n");
+    }
+    out.write(name + "_bucket{" + labels + ",le=\"+Inf\"} " + count + "\n");
+    out.write(name + "_sum{" + labels + "} " + histogram.getSum() / unit + "\n");
+    out.write(name + "_count{" + labels + "} " + count + "\n");
+  }
+
+  private static String escape(String value) {
+    return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+  }
+}
@@ -0,0 +1,71 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Allows each author at most {@code maxComments} comments in any sliding window of
+ * {@code windowMillis}. Authors are keyed by the name they enter, which is the only identity
+ * the comment form has.
+ */
+public final class RateLimitCheck implements CommentCheck {
+  // Above this many tracked authors, idle ones are dropped on the next check.
+  private final static int cleanupThreshold = 10000;
+
+  private final int maxComments;
+  private final long windowMillis;
+  private final Map<String, Deque<Long>> recentPosts = new HashMap<>();
+
+  public RateLimitCheck(int maxComments, long windowMillis) {
+    this.maxComments = maxComments;
+    this.windowMillis = windowMillis;
+  }
+
+  @Override
+  public synchronized Rejection check(Comment comment) {
+    long now = System.currentTimeMillis();
+    if (recentPosts.size() > cleanupThreshold) {
+      removeIdleAuthors(now);
+    }
+
+    String author = comment.getAuthor() == null ? "" : comment.getAuthor();
+    Deque<Long> times = recentPosts.computeIfAbsent(author, key -> new ArrayDeque<>());
+    while (!times.isEmpty() && now - times.peekFirst() >= windowMillis) {
+      times.removeFirst();
+    }
+
+    if (times.size() >= maxComments) {
+      return new Rejection(429, "Too many comments, please wait a minute.");
+    }
+
+    times.addLast(now);
+    return null;
+  }
+
+  private void removeIdleAuthors(long now) {
+    Iterator<Deque<Long>> it = recentPosts.values().iterator();
+    while (it.hasNext()) {
+      Deque<Long> times = it.next();
+      if (times.isEmpty() || now - times.peekLast() >= windowMillis) {
+        it.remove();
+      }
+    }
+  }
+}
@@ -0,0 +1,118 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Transaction;
+import java.util.ConcurrentModificationException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Counts replies per thread with a {@link ShardedCounter}, and folds the total into the thread's
+ * comment so the feed can show it without reading the shards. The comment itself is rewritten at
+ * most once per {@code foldIntervalMillis} per thread on each instance. Each fold that changes a
+ * count also stamps the comment's indexed {@link Comment#PROPERTY_UPDATED} property, so every
+ * instance can tell its cached feed is out of date.
+ */
+public final class ReplyCounter {
+  private final static String tblShard = "ReplyCountShard";
+  private final static int shardCount = 8;
+
+  private final DatastoreService datastore;
+  private final ShardedCounter counter;
+  private final long foldIntervalMillis;
+  private final Map<Long, Long> lastFolded;
+
+  public ReplyCounter(DatastoreService datastore, long foldIntervalMillis, int maxThreads) {
+    this.datastore = datastore;
+    this.counter = new ShardedCounter(datastore, tblShard, shardCount, foldIntervalMillis);
+    this.foldIntervalMillis = foldIntervalMillis;
+
+    // An access-ordered LinkedHashMap forgets the threads that haven't had a reply in a while.
+    this.lastFolded = new LinkedHashMap<Long, Long>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Long, Long> eldest) {
+        return size() > maxThreads;
+      }
+    };
+  }
+
+  /**
+   * Counts a new reply to {@code threadId}, then folds the total if the thread is due. Returns
+   * true if the thread's comment now shows a different count.
+   */
+  public boolean increment(long threadId) {
+    counter.increment(String.valueOf(threadId), 1);
+
+    long now = System.currentTimeMillis();
+    synchronized (lastFolded) {
+      Long folded = lastFolded.get(threadId);
+      if (folded != null && now - folded < foldIntervalMillis) {
+        return false;
+      }
+      lastFolded.put(threadId, now);
+    }
+    return fold(threadId);
+  }
+
+  /** Deletes the reply count for {@code threadId}, once the thread has been archived. */
+  public void forget(long threadId) {
+    counter.delete(String.valueOf(threadId));
+    synchronized (lastFolded) {
+      lastFolded.remove(threadId);
+    }
+  }
+
+  /** Returns the reply count for {@code threadId}. */
+  public long count(long threadId) {
+    return counter.get(String.valueOf(threadId));
+  }
+
+  /**
+   * Copies the shard total onto the thread's comment. Counts only grow, so a fold that read the
+   * shards before another one never lowers the stored count. Returns true if the count changed.
+   */
+  public boolean fold(long threadId) {
+    long total = count(threadId);
+    Key key = KeyFactory.createKey(Comment.KIND, threadId);
+
+    Transaction txn = datastore.beginTransaction();
+    try {
+      Entity comment = datastore.get(txn, key);
+      Long stored = (Long) comment.getProperty(Comment.PROPERTY_REPLIES);
+      if (stored != null && stored >= total) {
+        return false;
+      }
+      comment.setUnindexedProperty(Comment.PROPERTY_REPLIES, total);
+      comment.setProperty(Comment.PROPERTY_UPDATED, System.currentTimeMillis());
+      datastore.put(txn, comment);
+      txn.commit();
+    } catch (EntityNotFoundException | ConcurrentModificationException e) {
+      // Archived or deleted, or being folded by another request. A later reply or a read of the
+      // thread folds again.
+      return false;
+    } finally {
+      if (txn.isActive()) {
+        txn.rollback();
+      }
+    }
+    return true;
+  }
+}
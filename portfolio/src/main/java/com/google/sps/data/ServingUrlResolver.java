@@ -0,0 +1,92 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import com.google.appengine.api.blobstore.BlobInfo;
+import com.google.appengine.api.blobstore.BlobInfoFactory;
+import com.google.appengine.api.blobstore.BlobKey;
+import com.google.appengine.api.blobstore.BlobstoreService;
+import com.google.appengine.api.images.ImagesService;
+import com.google.appengine.api.images.ServingUrlOptions;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Resolves a {@code BlobKey} to the relative URL that serves it, remembering the answer. Serving
+ * URLs never change for a blob, so a cached key skips both the BlobInfo and ImagesService RPCs.
+ */
+public final class ServingUrlResolver {
+  private final BlobstoreService blobstoreService;
+  private final ImagesService imagesService;
+  private final Map<BlobKey, String> urls;
+
+  public ServingUrlResolver(
+      BlobstoreService blobstoreService, ImagesService imagesService, int maxEntries) {
+    this.blobstoreService = blobstoreService;
+    this.imagesService = imagesService;
+
+    // An access-ordered LinkedHashMap drops the least recently used key once it is full.
+    this.urls = new LinkedHashMap<BlobKey, String>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<BlobKey, String> eldest) {
+        return size() > maxEntries;
+      }
+    };
+  }
+
+  /**
+   * Returns a relative URL that serves the blob, or null if the blob is empty. Empty blobs are
+   * what the live server creates when the form is submitted without a file, so they are deleted.
+   */
+  public String getServingUrl(BlobKey blobKey) {
+    synchronized (urls) {
+      String cached = urls.get(blobKey);
+      if (cached != null) {
+        return cached;
+      }
+    }
+
+    BlobInfo blobInfo = new BlobInfoFactory().loadBlobInfo(blobKey);
+    if (blobInfo == null || blobInfo.getSize() == 0) {
+      blobstoreService.delete(blobKey);
+      return null;
+    }
+
+    // To support running in Google Cloud Shell with AppEngine's devserver, we must use the relative
+    // path to the image, rather than the path returned by imagesService which contains a host.
+    String servingUrl =
+        imagesService.getServingUrl(ServingUrlOptions.Builder.withBlobKey(blobKey));
+    try {
+      servingUrl = new URL(servingUrl).getPath();
+    } catch (MalformedURLException e) {
+      // Already relative.
+    }
+
+    synchronized (urls) {
+      urls.put(blobKey, servingUrl);
+    }
+    return servingUrl;
+  }
+
+  /**
+   * Returns a URL for a square, center-cropped copy of the image at most {@code size} pixels wide.
+   * The image serving infrastructure resizes and caches it, so no extra RPC is needed.
+   */
+  public static String getResizedUrl(String servingUrl, int size) {
+    return servingUrl + "=s" + size + "-c";
+  }
+}
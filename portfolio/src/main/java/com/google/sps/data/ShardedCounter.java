@@ -0,0 +1,211 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Transaction;
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A family of named counters stored in one Datastore kind, each split over {@code shardCount}
+ * entities. An increment updates one random shard in its own transaction, so concurrent writers
+ * rarely touch the same entity group and a counter can take far more than one write a second.
+ * Reads sum the shards and are cached for {@code cacheMillis}; increments made on this instance
+ * are added to the cached values, so an instance always sees its own writes.
+ */
+public final class ShardedCounter {
+  private final static String tblName = "name";
+  private final static String tblCount = "count";
+  private final static int maxRetries = 3;
+  // Datastore takes at most 500 entities per batch put.
+  private final static int maxBatchSize = 500;
+  // Per-name cached values are dropped wholesale past this many, to bound memory.
+  private final static int maxCachedValues = 10000;
+
+  private static final class Cached<T> {
+    private final T value;
+    private final long readAt;
+
+    private Cached(T value, long readAt) {
+      this.value = value;
+      this.readAt = readAt;
+    }
+  }
+
+  private final DatastoreService datastore;
+  private final String kind;
+  private final int shardCount;
+  private final long cacheMillis;
+  private final Map<String, Cached<Long>> values = new ConcurrentHashMap<>();
+  private volatile Cached<Map<String, Long>> all;
+
+  public ShardedCounter(DatastoreService datastore, String kind, int shardCount,
+      long cacheMillis) {
+    this.datastore = datastore;
+    this.kind = kind;
+    this.shardCount = shardCount;
+    this.cacheMillis = cacheMillis;
+  }
+
+  /** Adds {@code delta} to the counter {@code name}, creating it if needed. */
+  public void increment(String name, long delta) {
+    Key key = shardKey(name, ThreadLocalRandom.current().nextInt(shardCount));
+    for (int attempt = 1; ; attempt++) {
+      Transaction txn = datastore.beginTransaction();
+      try {
+        Entity shard;
+        try {
+          shard = datastore.get(txn, key);
+        } catch (EntityNotFoundException e) {
+          shard = newShard(key, name, 0);
+        }
+        shard.setUnindexedProperty(tblCount, (long) shard.getProperty(tblCount) + delta);
+        datastore.put(txn, shard);
+        txn.commit();
+        break;
+      } catch (ConcurrentModificationException e) {
+        if (attempt >= maxRetries) {
+          throw e;
+        }
+      } finally {
+        if (txn.isActive()) {
+          txn.rollback();
+        }
+      }
+    }
+
+    values.computeIfPresent(
+        name, (counter, cached) -> new Cached<>(cached.value + delta, cached.readAt));
+    Cached<Map<String, Long>> cachedAll = all;
+    if (cachedAll != null) {
+      synchronized (cachedAll.value) {
+        cachedAll.value.merge(name, delta, Long::sum);
+      }
+    }
+  }
+
+  /** Returns the value of the counter {@code name}, or 0 if it was never incremented. */
+  public long get(String name) {
+    Cached<Long> cached = values.get(name);
+    long now = System.currentTimeMillis();
+    if (cached != null && now - cached.readAt < cacheMillis) {
+      return cached.value;
+    }
+
+    List<Key> keys = new ArrayList<>();
+    for (int shard = 0; shard < shardCount; shard++) {
+      keys.add(shardKey(name, shard));
+    }
+    long total = 0;
+    for (Entity shard : datastore.get(keys).values()) {
+      total += (long) shard.getProperty(tblCount);
+    }
+
+    if (values.size() >= maxCachedValues) {
+      values.clear();
+    }
+    values.put(name, new Cached<>(total, now));
+    return total;
+  }
+
+  /** Returns every counter in the kind by name, reading all of their shards in one query. */
+  public Map<String, Long> getAll() {
+    Cached<Map<String, Long>> cached = all;
+    long now = System.currentTimeMillis();
+    if (cached == null || now - cached.readAt >= cacheMillis) {
+      Map<String, Long> totals = new TreeMap<>();
+      for (Entity shard : datastore.prepare(new Query(kind)).asIterable()) {
+        totals.merge((String) shard.getProperty(tblName), (long) shard.getProperty(tblCount),
+            Long::sum);
+      }
+      cached = new Cached<>(totals, now);
+      all = cached;
+    }
+
+    synchronized (cached.value) {
+      return new TreeMap<>(cached.value);
+    }
+  }
+
+  /**
+   * Replaces every counter with {@code counts}, for rebuilding them from scratch. Each value goes
+   * in the first shard and the others are zeroed; shards of counters missing from {@code counts}
+   * are deleted.
+   */
+  public void setAll(Map<String, Long> counts) {
+    List<Entity> shards = new ArrayList<>();
+    for (Map.Entry<String, Long> count : counts.entrySet()) {
+      for (int shard = 0; shard < shardCount; shard++) {
+        long value = shard == 0 ? count.getValue() : 0;
+        shards.add(newShard(shardKey(count.getKey(), shard), count.getKey(), value));
+      }
+    }
+    for (int i = 0; i < shards.size(); i += maxBatchSize) {
+      datastore.put(shards.subList(i, Math.min(i + maxBatchSize, shards.size())));
+    }
+
+    List<Key> stale = new ArrayList<>();
+    for (Entity shard : datastore.prepare(new Query(kind).setKeysOnly()).asIterable()) {
+      String keyName = shard.getKey().getName();
+      int separator = keyName == null ? -1 : keyName.lastIndexOf('#');
+      if (separator < 0 || !counts.containsKey(keyName.substring(0, separator))) {
+        stale.add(shard.getKey());
+      }
+    }
+    for (int i = 0; i < stale.size(); i += maxBatchSize) {
+      datastore.delete(stale.subList(i, Math.min(i + maxBatchSize, stale.size())));
+    }
+    values.clear();
+    all = null;
+  }
+
+  /** Deletes every shard of the counter {@code name}, which then reads as 0. */
+  public void delete(String name) {
+    List<Key> keys = new ArrayList<>();
+    for (int shard = 0; shard < shardCount; shard++) {
+      keys.add(shardKey(name, shard));
+    }
+    datastore.delete(keys);
+    values.remove(name);
+    Cached<Map<String, Long>> cachedAll = all;
+    if (cachedAll != null) {
+      synchronized (cachedAll.value) {
+        cachedAll.value.remove(name);
+      }
+    }
+  }
+
+  private Entity newShard(Key key, String name, long count) {
+    Entity shard = new Entity(key);
+    shard.setUnindexedProperty(tblName, name);
+    shard.setUnindexedProperty(tblCount, count);
+    return shard;
+  }
+
+  private Key shardKey(String name, int shard) {
+    return KeyFactory.createKey(kind, name + "#" + shard);
+  }
+}
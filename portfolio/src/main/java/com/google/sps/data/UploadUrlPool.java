@@ -0,0 +1,152 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import com.google.appengine.api.blobstore.BlobstoreService;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of pre-minted Blobstore upload URLs, so most page loads get one from memory instead of
+ * waiting for a {@code createUploadUrl} RPC. Each URL is single-use and handed out once. Upload
+ * sessions expire, so a URL is only handed out while it is younger than {@code maxAgeMillis},
+ * which leaves the visitor time to fill in the form.
+ *
+ * <p>Once the pool drops below {@code lowWaterMark}, {@link #needsRefill} tells one caller to
+ * arrange a refill off the serving path, such as by queueing a task.
+ */
+public final class UploadUrlPool {
+  private static final class UploadUrl {
+    private final String url;
+    private final long mintedAt;
+
+    private UploadUrl(String url, long mintedAt) {
+      this.url = url;
+      this.mintedAt = mintedAt;
+    }
+  }
+
+  private final BlobstoreService blobstoreService;
+  private final String successPath;
+  private final int targetSize;
+  private final int lowWaterMark;
+  private final long maxAgeMillis;
+
+  // Oldest URL first.
+  private final Deque<UploadUrl> urls = new ArrayDeque<>();
+  private boolean refilling;
+  private long refillRequestedAt;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong expired = new AtomicLong();
+
+  public UploadUrlPool(BlobstoreService blobstoreService, String successPath, int targetSize,
+      int lowWaterMark, long maxAgeMillis) {
+    this.blobstoreService = blobstoreService;
+    this.successPath = successPath;
+    this.targetSize = targetSize;
+    this.lowWaterMark = lowWaterMark;
+    this.maxAgeMillis = maxAgeMillis;
+  }
+
+  /** Returns an unused upload URL, minting one synchronously only if the pool is empty. */
+  public String take() {
+    long now = System.currentTimeMillis();
+    synchronized (urls) {
+      UploadUrl uploadUrl;
+      while ((uploadUrl = urls.pollFirst()) != null) {
+        if (now - uploadUrl.mintedAt < maxAgeMillis) {
+          hits.incrementAndGet();
+          return uploadUrl.url;
+        }
+        expired.incrementAndGet();
+      }
+    }
+
+    misses.incrementAndGet();
+    return blobstoreService.createUploadUrl(successPath);
+  }
+
+  /**
+   * Tops the pool back up to its target size, one {@code createUploadUrl} RPC per URL. This runs
+   * from warmup and cron requests rather than a visitor's request, since App Engine doesn't keep
+   * background threads alive between requests. Only one caller refills at a time; the others
+   * return right away.
+   */
+  public void refill() {
+    synchronized (urls) {
+      if (refilling || urls.size() >= targetSize) {
+        return;
+      }
+      refilling = true;
+    }
+
+    try {
+      while (true) {
+        synchronized (urls) {
+          if (urls.size() >= targetSize) {
+            return;
+          }
+        }
+
+        String url = blobstoreService.createUploadUrl(successPath);
+        synchronized (urls) {
+          urls.addLast(new UploadUrl(url, System.currentTimeMillis()));
+        }
+      }
+    } finally {
+      synchronized (urls) {
+        refilling = false;
+        refillRequestedAt = 0;
+      }
+    }
+  }
+
+  /**
+   * Returns true if the pool is below its low-water mark and nobody was asked to refill it in the
+   * last {@code maxAgeMillis}; the caller should then arrange a refill. A request that was lost is
+   * asked for again after that long.
+   */
+  public boolean needsRefill() {
+    long now = System.currentTimeMillis();
+    synchronized (urls) {
+      if (urls.size() >= lowWaterMark || refilling || now - refillRequestedAt < maxAgeMillis) {
+        return false;
+      }
+      refillRequestedAt = now;
+      return true;
+    }
+  }
+
+  public int size() {
+    synchronized (urls) {
+      return urls.size();
+    }
+  }
+
+  public long getHitCount() {
+    return hits.get();
+  }
+
+  public long getMissCount() {
+    return misses.get();
+  }
+
+  public long getExpiredCount() {
+    return expired.get();
+  }
+}
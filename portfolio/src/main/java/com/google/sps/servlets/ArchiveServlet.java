@@ -0,0 +1,53 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.sps.data.CommentArchive;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Retention job, run by cron.xml: moves comments older than {@code comments.retention.maxAgeDays}
+ * into compressed archive segments. Instances notice the new segments the next time they check
+ * the feed version, and drop their cached feed then. App Engine strips the
+ * {@code X-Appengine-Cron} header from outside requests, so only the cron service can trigger it.
+ */
+@WebServlet("/tasks/archive-comments")
+public class ArchiveServlet extends HttpServlet {
+  private final static int segmentSize = 500;
+  private final static int maxSegmentsPerRun = 20;
+
+  @Override
+  public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    if (!"true".equals(request.getHeader("X-Appengine-Cron"))) {
+      response.sendError(HttpServletResponse.SC_FORBIDDEN);
+      return;
+    }
+
+    long maxAgeDays = Long.getLong("comments.retention.maxAgeDays", 365);
+    long cutoff = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(maxAgeDays);
+
+    ServiceRegistry services = ServiceRegistry.get(getServletContext());
+    int archived = CommentArchive.archiveOlderThan(services.getDatastore(),
+        services.getReplyCounter(), cutoff, segmentSize, maxSegmentsPerRun);
+
+    response.setContentType("text/plain");
+    response.getWriter().println("Archived " + archived + " comments.");
+  }
+}
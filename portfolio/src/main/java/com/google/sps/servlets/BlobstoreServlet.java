@@ -14,8 +14,11 @@
 
 package com.google.sps.servlets;
 
-import com.google.appengine.api.blobstore.BlobstoreService;
-import com.google.appengine.api.blobstore.BlobstoreServiceFactory;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.gson.JsonObject;
+import com.google.sps.data.Metrics;
+import com.google.sps.data.UploadUrlPool;
 import java.io.IOException;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
@@ -27,12 +30,38 @@ import javax.servlet.http.HttpServletResponse;
  * the URL that allows a user to upload a file to Blobstore. If this sounds confusing, try running a
  * dev server and navigating to /blobstore-upload-url to see the Blobstore URL.
  */
-@WebServlet("/blobstore-url")
+@WebServlet({"/blobstore-url", "/blobstore-url/stats"})
 public class BlobstoreServlet extends HttpServlet {
   @Override
   public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
-    BlobstoreService blobstoreService = BlobstoreServiceFactory.getBlobstoreService();
-    String uploadUrl = blobstoreService.createUploadUrl("/data");
+    ServiceRegistry services = ServiceRegistry.get(getServletContext());
+    UploadUrlPool pool = services.getUploadUrlPool();
+
+    if (request.getServletPath().endsWith("/stats")) {
+      JsonObject stats = new JsonObject();
+      stats.addProperty("size", pool.size());
+      stats.addProperty("hits", pool.getHitCount());
+      stats.addProperty("misses", pool.getMissCount());
+      stats.addProperty("expired", pool.getExpiredCount());
+
+      response.setContentType("application/json;");
+      response.getWriter().println(stats);
+      return;
+    }
+
+    // Most page loads never upload, so hand out a pre-minted URL and only mint one if we ran out.
+    // The pool is refilled by UploadUrlRefillServlet, never on this request: App Engine buffers
+    // the response, so anything done here after writing the URL still delays the visitor. Running
+    // low only queues a refill task, without waiting for the queue to accept it.
+    String uploadUrl;
+    try (Metrics.Span span = services.getMetrics().span("upload_url_take")) {
+      uploadUrl = pool.take();
+    }
+    if (pool.needsRefill()) {
+      QueueFactory.getDefaultQueue().addAsync(TaskOptions.Builder
+          .withUrl(UploadUrlRefillServlet.taskPath)
+          .method(TaskOptions.Method.GET));
+    }
 
     response.setContentType("text/html");
     response.getWriter().println(uploadUrl);
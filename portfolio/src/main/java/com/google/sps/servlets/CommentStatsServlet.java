@@ -0,0 +1,53 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.sps.data.CommentJson;
+import com.google.sps.data.CommentStats;
+import java.io.IOException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Returns the number of comments for each comment limit value, used by the pie chart. The
+ * /authors path returns counts per author instead, and /total the number of comments.
+ */
+@WebServlet({"/data/stats", "/data/stats/authors", "/data/stats/total"})
+public class CommentStatsServlet extends HttpServlet {
+  @Override
+  public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    CommentStats stats = ServiceRegistry.get(getServletContext()).getCommentStats();
+
+    Gson gson = CommentJson.GSON;
+
+    String json;
+    if (request.getServletPath().endsWith("/authors")) {
+      json = gson.toJson(stats.getAuthorCounts());
+    } else if (request.getServletPath().endsWith("/total")) {
+      JsonObject total = new JsonObject();
+      total.addProperty("total", stats.getTotal());
+      json = gson.toJson(total);
+    } else {
+      json = gson.toJson(stats.getCounts());
+    }
+
+    response.setContentType("application/json;");
+    response.getWriter().println(json);
+  }
+}
@@ -0,0 +1,83 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.sps.data.CommentBroadcaster;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Server-Sent Events stream of new comments. Each connection is closed after
+ * {@code streamTimeoutMillis} and the browser's EventSource reconnects with the last event id, so
+ * this also works, as long polling, where the runtime buffers responses.
+ */
+@WebServlet(urlPatterns = "/data/stream", asyncSupported = true)
+public class CommentStreamServlet extends HttpServlet {
+  private final static long streamTimeoutMillis = 25 * 1000;
+  private final static int retryMillis = 1000;
+
+  @Override
+  public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    // A fresh EventSource has already loaded the feed, so only a reconnect gets a replay.
+    long lastId = Long.MAX_VALUE;
+    String lastEventId = request.getHeader("Last-Event-ID");
+    if (lastEventId != null) {
+      try {
+        lastId = Long.parseLong(lastEventId.trim());
+      } catch (NumberFormatException e) {
+        // Start from new events only.
+      }
+    }
+
+    response.setContentType("text/event-stream");
+    response.setCharacterEncoding("UTF-8");
+    response.setHeader("Cache-Control", "no-cache");
+    response.getOutputStream().write(
+        ("retry: " + retryMillis + "\n\n").getBytes(StandardCharsets.UTF_8));
+    response.flushBuffer();
+
+    CommentBroadcaster broadcaster = ServiceRegistry.get(getServletContext()).getBroadcaster();
+    AsyncContext context = request.startAsync();
+    context.setTimeout(streamTimeoutMillis);
+    context.addListener(new AsyncListener() {
+      @Override
+      public void onComplete(AsyncEvent event) {
+        broadcaster.unsubscribe(context);
+      }
+
+      @Override
+      public void onTimeout(AsyncEvent event) {
+        broadcaster.unsubscribe(context);
+        context.complete();
+      }
+
+      @Override
+      public void onError(AsyncEvent event) {
+        broadcaster.unsubscribe(context);
+      }
+
+      @Override
+      public void onStartAsync(AsyncEvent event) {}
+    });
+    broadcaster.subscribe(context, lastId);
+  }
+}
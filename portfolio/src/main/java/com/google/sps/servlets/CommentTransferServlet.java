@@ -0,0 +1,153 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.appengine.api.users.UserService;
+import com.google.appengine.api.users.UserServiceFactory;
+import com.google.gson.JsonObject;
+import com.google.sps.data.CommentJson;
+import com.google.sps.data.CommentTransfer;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Admin endpoint for moving comments in and out in bulk as JSON lines.
+ *
+ * <ul>
+ *   <li>{@code GET /admin/comments?start=&end=&limit=} exports comments with ids in
+ *       [start, end), each followed by its replies. To resume, pass the id of the last exported
+ *       comment that has no {@code parentId}, plus one, as {@code start}.
+ *   <li>{@code GET /admin/comments/splits?ranges=} returns ids that split the comments into
+ *       about that many ranges, for exporting in parallel.
+ *   <li>{@code POST /admin/comments?skip=} imports the request body, skipping the first lines.
+ *       The response says how many lines to skip when resuming after a failure.
+ *   <li>{@code POST /admin/comments/recount} rebuilds the comment counts. Imported comments
+ *       bypass the counters, so call this once after the last import request.
+ * </ul>
+ */
+@WebServlet({"/admin/comments", "/admin/comments/splits", "/admin/comments/recount"})
+public class CommentTransferServlet extends HttpServlet {
+  private final static String paramStart = "start";
+  private final static String paramEnd = "end";
+  private final static String paramLimit = "limit";
+  private final static String paramRanges = "ranges";
+  private final static String paramSkip = "skip";
+  private final static int maxRanges = 100;
+
+  @Override
+  public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    if (!isAdmin(response)) {
+      return;
+    }
+    ServiceRegistry services = ServiceRegistry.get(getServletContext());
+
+    long start;
+    long end;
+    int limit;
+    int ranges;
+    try {
+      start = getLong(request, paramStart);
+      end = getLong(request, paramEnd);
+      limit = (int) getLong(request, paramLimit);
+      ranges = (int) Math.min(getLong(request, paramRanges), maxRanges);
+    } catch (NumberFormatException e) {
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Parameters must be numbers.");
+      return;
+    }
+
+    if (request.getServletPath().endsWith("/splits")) {
+      List<Long> points = CommentTransfer.splitPoints(services.getDatastore(), Math.max(ranges, 1));
+      response.setContentType("application/json;");
+      response.getWriter().println(CommentJson.GSON.toJson(points));
+      return;
+    }
+
+    response.setContentType("application/x-ndjson");
+    response.setCharacterEncoding("UTF-8");
+    Writer writer = new OutputStreamWriter(response.getOutputStream(), StandardCharsets.UTF_8);
+    CommentTransfer.export(services.getDatastore(), start, end, limit, writer);
+  }
+
+  @Override
+  public void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    if (!isAdmin(response)) {
+      return;
+    }
+    ServiceRegistry services = ServiceRegistry.get(getServletContext());
+
+    // A full recount reads every comment, so it runs once per import rather than per request.
+    if (request.getServletPath().endsWith("/recount")) {
+      services.getCommentStats().rebuild();
+      JsonObject json = new JsonObject();
+      json.addProperty("total", services.getCommentStats().getTotal());
+      response.setContentType("application/json;");
+      response.getWriter().println(json);
+      return;
+    }
+
+    long skip;
+    try {
+      skip = getLong(request, paramSkip);
+    } catch (NumberFormatException e) {
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST, "skip must be a number.");
+      return;
+    }
+
+    request.setCharacterEncoding("UTF-8");
+    CommentTransfer.ImportResult result =
+        CommentTransfer.importLines(
+            services.getDatastore(), services.getAsyncDatastore(), request.getReader(), skip);
+
+    JsonObject json = new JsonObject();
+    json.addProperty("imported", result.getImported());
+    json.addProperty("resumeAt", result.getResumeAt());
+    if (result.getError() != null) {
+      json.addProperty("error", result.getError());
+      response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+    }
+    response.setContentType("application/json;");
+    response.getWriter().println(json);
+  }
+
+  /** Sends 401 or 403 and returns false unless an admin is signed in. */
+  private boolean isAdmin(HttpServletResponse response) throws IOException {
+    UserService userService = UserServiceFactory.getUserService();
+    if (!userService.isUserLoggedIn()) {
+      response.sendError(HttpServletResponse.SC_UNAUTHORIZED);
+      return false;
+    }
+    if (!userService.isUserAdmin()) {
+      response.sendError(HttpServletResponse.SC_FORBIDDEN);
+      return false;
+    }
+    return true;
+  }
+
+  /** Returns the parameter as a long, or 0 if it is missing. */
+  private static long getLong(HttpServletRequest request, String name) {
+    String value = request.getParameter(name);
+    if (value == null || value.isEmpty()) {
+      return 0;
+    }
+    return Long.parseLong(value);
+  }
+}
@@ -0,0 +1,278 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.util.Locale;
+import java.util.zip.GZIPOutputStream;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * Gzips JSON and text responses for clients that accept it. Only the first
+ * {@code minCompressBytes} are held back: a body that ends or is flushed before then goes out
+ * as-is, since compressing it would save little, and anything longer is compressed as it is
+ * written. The event stream at {@code /data/stream} is left alone so its events aren't held in
+ * the compressor. Compressed bodies are blocking only, so a {@code WriteListener} can't be set on
+ * them. Compressed bodies get a weak ETag, since they aren't byte-for-byte the entity the
+ * servlet tagged. The filter is mapped in web.xml, after {@link MetricsFilter}.
+ */
+public class CompressionFilter implements Filter {
+  private final static int minCompressBytes = 1024;
+  private final static String streamPath = "/data/stream";
+
+  @Override
+  public void init(FilterConfig config) {}
+
+  @Override
+  public void doFilter(ServletRequest servletRequest, ServletResponse servletResponse,
+      FilterChain chain) throws IOException, ServletException {
+    HttpServletRequest request = (HttpServletRequest) servletRequest;
+    HttpServletResponse response = (HttpServletResponse) servletResponse;
+
+    // Caches must keep compressed and uncompressed copies apart.
+    response.addHeader("Vary", "Accept-Encoding");
+    String path = request.getRequestURI().substring(request.getContextPath().length());
+    if (path.equals(streamPath) || "HEAD".equals(request.getMethod())
+        || !acceptsGzip(request.getHeader("Accept-Encoding"))) {
+      chain.doFilter(request, response);
+      return;
+    }
+
+    CompressingResponse compressing = new CompressingResponse(response);
+    chain.doFilter(request, compressing);
+    compressing.finish();
+  }
+
+  @Override
+  public void destroy() {}
+
+  /** Returns true if the Accept-Encoding header allows gzip with a non-zero quality. */
+  static boolean acceptsGzip(String acceptEncoding) {
+    if (acceptEncoding == null) {
+      return false;
+    }
+    for (String coding : acceptEncoding.toLowerCase(Locale.ROOT).split(",")) {
+      String[] parts = coding.trim().split(";");
+      String name = parts[0].trim();
+      if (!name.equals("gzip") && !name.equals("*")) {
+        continue;
+      }
+      for (int i = 1; i < parts.length; i++) {
+        String param = parts[i].trim();
+        if (param.startsWith("q=")) {
+          try {
+            return Double.parseDouble(param.substring(2)) > 0;
+          } catch (NumberFormatException e) {
+            return false;
+          }
+        }
+      }
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Returns true for the content types worth compressing; images are already compressed, and
+   * event streams must reach the client as each event is written.
+   */
+  private static boolean isCompressible(String contentType) {
+    if (contentType == null) {
+      return false;
+    }
+    String type = contentType.toLowerCase(Locale.ROOT);
+    if (type.startsWith("text/event-stream")) {
+      return false;
+    }
+    return type.startsWith("text/") || type.startsWith("application/json")
+        || type.startsWith("application/javascript");
+  }
+
+  /**
+   * Holds back the start of the body until it is clearly worth compressing, then switches to
+   * writing either straight through or through a gzip stream.
+   */
+  private static final class CompressingResponse extends HttpServletResponseWrapper {
+    private final ByteArrayOutputStream head = new ByteArrayOutputStream();
+    // Null until the first minCompressBytes are written or the body is flushed.
+    private OutputStream out;
+    private GZIPOutputStream gzip;
+    private long contentLength = -1;
+    private ServletOutputStream body;
+    private boolean streamUsed;
+    private PrintWriter writer;
+
+    CompressingResponse(HttpServletResponse response) {
+      super(response);
+    }
+
+    @Override
+    public void setContentLength(int length) {
+      setContentLengthLong(length);
+    }
+
+    @Override
+    public void setContentLengthLong(long length) {
+      // Only known to be right once we know the body won't be compressed.
+      contentLength = length;
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() {
+      if (writer != null) {
+        throw new IllegalStateException("getWriter() has already been called.");
+      }
+      streamUsed = true;
+      return body();
+    }
+
+    @Override
+    public PrintWriter getWriter() {
+      if (streamUsed) {
+        throw new IllegalStateException("getOutputStream() has already been called.");
+      }
+      if (writer == null) {
+        Charset charset = Charset.forName(getCharacterEncoding());
+        writer = new PrintWriter(new OutputStreamWriter(body(), charset));
+      }
+      return writer;
+    }
+
+    @Override
+    public void flushBuffer() throws IOException {
+      if (writer != null) {
+        writer.flush();
+      } else if (body != null) {
+        body.flush();
+      }
+      super.flushBuffer();
+    }
+
+    @Override
+    public void reset() {
+      if (out != null) {
+        throw new IllegalStateException("The response has already started.");
+      }
+      super.reset();
+      head.reset();
+    }
+
+    @Override
+    public void resetBuffer() {
+      if (out != null) {
+        throw new IllegalStateException("The response has already started.");
+      }
+      super.resetBuffer();
+      head.reset();
+    }
+
+    /** Sends whatever is still held back and ends the gzip stream, if any. */
+    void finish() throws IOException {
+      // Nothing was written, as with redirects, errors and 304s.
+      if (body == null) {
+        return;
+      }
+      if (writer != null) {
+        writer.flush();
+      }
+      if (out == null) {
+        start(false);
+      }
+      if (gzip != null) {
+        gzip.finish();
+      }
+    }
+
+    private ServletOutputStream body() {
+      if (body == null) {
+        body = new ServletOutputStream() {
+          @Override
+          public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+          }
+
+          @Override
+          public void write(byte[] b, int off, int len) throws IOException {
+            if (out != null) {
+              out.write(b, off, len);
+              return;
+            }
+            head.write(b, off, len);
+            if (head.size() >= minCompressBytes) {
+              start(true);
+            }
+          }
+
+          @Override
+          public void flush() throws IOException {
+            if (out == null) {
+              start(false);
+            }
+            out.flush();
+          }
+
+          @Override
+          public boolean isReady() {
+            return true;
+          }
+
+          @Override
+          public void setWriteListener(WriteListener listener) {
+            throw new IllegalStateException("Compressed responses only support blocking I/O.");
+          }
+        };
+      }
+      return body;
+    }
+
+    /** Picks the encoding, sends the headers and writes out the held-back bytes. */
+    private void start(boolean large) throws IOException {
+      HttpServletResponse response = (HttpServletResponse) getResponse();
+      boolean compress = large && isCompressible(getContentType())
+          && !response.containsHeader("Content-Encoding");
+      if (compress) {
+        response.setHeader("Content-Encoding", "gzip");
+        String etag = response.getHeader("ETag");
+        if (etag != null && !etag.startsWith("W/")) {
+          response.setHeader("ETag", "W/" + etag);
+        }
+        gzip = new GZIPOutputStream(response.getOutputStream(), 8192, true);
+        out = gzip;
+      } else {
+        if (contentLength >= 0) {
+          response.setContentLengthLong(contentLength);
+        }
+        out = response.getOutputStream();
+      }
+      head.writeTo(out);
+      head.reset();
+    }
+  }
+}
@@ -14,74 +14,265 @@
 
 package com.google.sps.servlets;
 
-import com.google.appengine.api.blobstore.BlobInfo;
-import com.google.appengine.api.blobstore.BlobInfoFactory;
 import com.google.appengine.api.blobstore.BlobKey;
 import com.google.appengine.api.blobstore.BlobstoreService;
-import com.google.appengine.api.blobstore.BlobstoreServiceFactory;
+import com.google.appengine.api.datastore.Cursor;
 import com.google.appengine.api.datastore.DatastoreService;
-import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.DatastoreTimeoutException;
 import com.google.appengine.api.datastore.Entity;
-import com.google.appengine.api.datastore.PreparedQuery;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.PropertyProjection;
 import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.CompositeFilterOperator;
+import com.google.appengine.api.datastore.Query.Filter;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
 import com.google.appengine.api.datastore.Query.SortDirection;
-import com.google.appengine.api.images.ImagesService;
-import com.google.appengine.api.images.ImagesServiceFactory;
-import com.google.appengine.api.images.ServingUrlOptions;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.apphosting.api.ApiProxy.ApiDeadlineExceededException;
 import com.google.gson.Gson;
+import com.google.gson.stream.JsonWriter;
 import com.google.sps.data.Comment;
+import com.google.sps.data.CommentArchive;
+import com.google.sps.data.CommentCache;
+import com.google.sps.data.CommentCheck;
+import com.google.sps.data.CommentJson;
+import com.google.sps.data.CommentWriteQueue;
+import com.google.sps.data.DuplicateCheck;
+import com.google.sps.data.FeedSnapshot;
+import com.google.sps.data.FeedVersion;
+import com.google.sps.data.Metrics;
+import com.google.sps.data.RateLimitCheck;
+import com.google.sps.data.ReplyCounter;
+import com.google.sps.data.ServingUrlResolver;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.net.MalformedURLException;
-import java.net.URL;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-/** Servlet that returns some example content. TODO: modify this file to handle comments data */
-@WebServlet("/data")
+/**
+ * Serves and accepts comments.
+ *
+ * <ul>
+ *   <li>{@code GET /data} returns one page of the feed, newest first, as JSON. The page size is
+ *       {@code limit}, at most {@code maxLimit}. The next page is asked for with the returned
+ *       {@code cursor}, and pages past the oldest live comment come from {@link CommentArchive}.
+ *       The feed can be filtered by {@code author}, {@code since} and {@code until}.
+ *       {@code thread} returns a comment's replies instead. Feed responses carry an ETag from
+ *       {@link FeedVersion}, so an unchanged feed costs a 304 and no Datastore read.
+ *   <li>{@code POST /data} takes the comment form, with an optional image uploaded through
+ *       Blobstore, and writes the comment through {@link CommentWriteQueue} after the
+ *       {@link CommentCheck}s accept it. It then redirects back to the page.
+ *   <li>{@code GET /data/latest} redirects to the current snapshot of the first page. With
+ *       {@code v}, the snapshot covers at least that feed version.
+ *   <li>{@code GET /data/snapshot/<name>.json} serves a rendered first page. A snapshot never
+ *       changes once written, so browsers and the edge may cache it indefinitely.
+ * </ul>
+ */
+@WebServlet({"/data", "/data/latest", "/data/snapshot/*"})
 public class DataServlet extends HttpServlet {
-  private final static String tblTitle = "Comment";
-  private final static String tblComment = "comment";
-  private final static String tblName = "name";
-  private final static String tblLimit = "limit";
-  private final static String tblTime = "timestamp";
-  private final static String tblImage = "image";
+  private final static Logger logger = Logger.getLogger(DataServlet.class.getName());
+
+  private final static String tblTitle = Comment.KIND;
+  private final static String tblName = Comment.PROPERTY_AUTHOR;
+  private final static String tblTime = Comment.PROPERTY_TIMESTAMP;
 
   private final static String htmlComment = "text-input";
   private final static String htmlName = "name";
   private final static String htmlLimit = "commentLimit";
+  private final static String htmlParent = "parent";
 
   private final static String blobImg = "image-file";
 
+  private final static String paramLimit = "limit";
+  private final static String paramCursor = "cursor";
+  private final static String paramAuthor = "author";
+  private final static String paramSince = "since";
+  private final static String paramUntil = "until";
+  private final static String paramThread = "thread";
+  private final static String paramVersion = "v";
+  private final static int defaultLimit = 5;
+  private final static int maxLimit = 50;
+  private final static int maxThreadSize = 1000;
+
+  // The feed shows images at 100px; twice that keeps them sharp on high-density screens.
+  private final static int thumbnailSize = 200;
+
+  private final static long cacheTtlMillis = 30 * 1000;
+
+  // Bounds the counter work a single POST picks up from the queue.
+  private final static int maxCounterUpdatesPerPost = 20;
+
+  // At most one snapshot render per this interval, however many comments are posted.
+  private final static long snapshotMinIntervalMillis = 5 * 1000;
+  // How long browsers and the edge may keep the /data/latest redirect.
+  private final static int latestMaxAgeSeconds = 5;
+
+  private final static Gson gson = CommentJson.GSON;
+
+  private final CommentCache commentCache = new CommentCache(maxLimit, cacheTtlMillis);
+
+  private final FeedVersion feedVersion = new FeedVersion(cacheTtlMillis);
+
+
+  // True while one request is reloading the cache.
+  private final AtomicBoolean reloading = new AtomicBoolean();
+
+  // The newest change to posted comments this instance has accounted for in its cached feed.
+  private final AtomicLong updateSeen = new AtomicLong();
+
+  // Counter increments for written comments, waiting for a posting request to run them.
+  private final Queue<Runnable> counterUpdates = new ConcurrentLinkedQueue<>();
+
+  // Set once in init(), before the container hands the servlet any request.
+  private ServiceRegistry services;
+  private CommentWriteQueue commentWriteQueue;
+  private List<CommentCheck> commentChecks;
+  private ReplyCounter replyCounter;
+  // Holds maxLimit comments so every page size can be cut from the same cached snapshot.
+  private FeedSnapshot feedSnapshot;
+
+  @Override
+  public void init() {
+    services = ServiceRegistry.get(getServletContext());
+    feedSnapshot =
+        new FeedSnapshot(services.getMemcache(), snapshotMinIntervalMillis, cacheTtlMillis, 8);
+
+    // Batching is configured with system properties in appengine-web.xml.
+    CommentWriteQueue.Durability durability = CommentWriteQueue.Durability.valueOf(
+        System.getProperty("comments.write.durability", "acknowledged").toUpperCase());
+    int batchSize = Integer.getInteger("comments.write.batchSize", 50);
+    long maxDelayMillis = Long.getLong("comments.write.maxDelayMillis", 10);
+    int maxPending = Integer.getInteger("comments.write.maxPending", 500);
+
+    commentWriteQueue = new CommentWriteQueue(
+        services.getAsyncDatastore(), durability, batchSize, maxDelayMillis, maxPending);
+
+    // Five comments a minute per author, and no author repeating a message within about ten
+    // minutes.
+    commentChecks = Arrays.asList(
+        new RateLimitCheck(5, 60 * 1000), new DuplicateCheck(10000, 0.001, 10 * 60 * 1000));
+
+    replyCounter = services.getReplyCounter();
+
+    services.getMetrics().registerCounter("comment_cache_hits_total",
+        "First-page reads answered by the comment cache.", commentCache::getHitCount);
+    services.getMetrics().registerCounter("comment_cache_misses_total",
+        "First-page reads that went to Datastore.", commentCache::getMissCount);
+  }
+
   @Override
   public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
-    Query query = new Query(tblTitle).addSort(tblTime, SortDirection.DESCENDING);
-    ;
+    if (request.getServletPath().equals("/data/latest")) {
+      redirectToSnapshot(request, response);
+      return;
+    }
+    if (request.getServletPath().equals("/data/snapshot")) {
+      writeSnapshot(request, response);
+      return;
+    }
 
-    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
-    PreparedQuery results = datastore.prepare(query);
+    // Threads aren't part of the feed's version, so they skip the conditional GET below.
+    String thread = request.getParameter(paramThread);
+    if (thread != null) {
+      long threadId;
+      try {
+        threadId = Long.parseLong(thread);
+      } catch (NumberFormatException e) {
+        response.sendError(HttpServletResponse.SC_BAD_REQUEST, "thread must be a comment id.");
+        return;
+      }
+      writeThread(response, threadId);
+      return;
+    }
 
-    List<Comment> comments = new ArrayList<Comment>();
-    for (Entity entity : results.asIterable()) {
-      String commentString = (String) entity.getProperty(tblComment);
-      String name = (String) entity.getProperty(tblName);
-      long id = entity.getKey().getId();
-      String limit = (String) entity.getProperty(tblLimit);
-      String image = (String) entity.getProperty(tblImage);
+    // Only fetch one page of comments; the client asks for the next one with the returned cursor.
+    int limit = getLimit(request);
+    String cursorString = request.getParameter(paramCursor);
+    Cursor cursor = null;
+    String archiveCursor = null;
+    if (CommentArchive.isArchiveCursor(cursorString)) {
+      archiveCursor = cursorString;
+    } else if (cursorString != null && !cursorString.isEmpty()) {
+      try {
+        cursor = Cursor.fromWebSafeString(cursorString);
+      } catch (IllegalArgumentException e) {
+        response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid cursor.");
+        return;
+      }
+    }
 
-      Comment comment = new Comment(id, commentString, name, limit, image);
-      comments.add(comment);
+    // Filters are pushed down to Datastore; see datastore-indexes.xml for the indexes they need.
+    List<Filter> filters;
+    try {
+      filters = getFilters(request);
+    } catch (NumberFormatException e) {
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST, "since and until must be numbers.");
+      return;
     }
 
-    Gson gson = new Gson();
+    // Answer 304 without touching Datastore when the client already has this version of the feed.
+    long version = feedVersion.get(this::readNewestTimestamp);
+    String etag = "\"" + version + "\"";
+    response.setHeader("ETag", etag);
+    response.setDateHeader("Last-Modified", version);
+    response.setHeader("Cache-Control", "no-cache");
+    if (isNotModified(request, etag, version)) {
+      response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+      return;
+    }
 
-    // Send the JSON as the response
-    response.setContentType("application/json;");
-    response.getWriter().println(gson.toJson(comments));
+    // Pages past the oldest live comment come from the archive.
+    if (archiveCursor != null) {
+      CommentArchive.Page archived;
+      try {
+        try (Metrics.Span span = services.getMetrics().span("archive_read")) {
+          archived = CommentArchive.read(services.getFeedDatastore(), archiveCursor, limit);
+        }
+      } catch (IllegalArgumentException e) {
+        response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid cursor.");
+        return;
+      }
+      List<CommentCache.Entry> page = new ArrayList<>();
+      for (Comment comment : archived.getComments()) {
+        byte[] json = gson.toJson(comment).getBytes(StandardCharsets.UTF_8);
+        page.add(new CommentCache.Entry(comment, json, null));
+      }
+      writePage(response, page, archived.getNextCursor());
+      return;
+    }
+
+    // Later pages and filtered queries skip the cache and go straight from Datastore to the
+    // response.
+    if (cursor != null || !filters.isEmpty()) {
+      streamComments(response, filters, cursor, limit);
+      return;
+    }
+
+    List<CommentCache.Entry> page = readFirstPage(limit);
+    writePage(response, page, getNextCursor(page, limit));
   }
 
   @Override
@@ -89,60 +280,582 @@ public class DataServlet extends HttpServlet {
     // Get the input from the form.
     String text = request.getParameter(htmlComment);
     String name = request.getParameter(htmlName);
-    String limit = request.getParameter(htmlLimit);
+    int limit;
+    try {
+      limit = Integer.parseInt(request.getParameter(htmlLimit));
+    } catch (NumberFormatException e) {
+      deleteUploads(request);
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST, "commentLimit must be a number.");
+      return;
+    }
     long timestamp = System.currentTimeMillis();
+
+    // Replies name the comment that starts their thread; top-level comments leave it out.
+    long parentId = 0;
+    String parent = request.getParameter(htmlParent);
+    if (parent != null && !parent.isEmpty()) {
+      try {
+        parentId = Long.parseLong(parent);
+        services.getDatastore().get(KeyFactory.createKey(tblTitle, parentId));
+      } catch (NumberFormatException | EntityNotFoundException e) {
+        deleteUploads(request);
+        response.sendError(HttpServletResponse.SC_BAD_REQUEST, "parent must be a comment id.");
+        return;
+      }
+    }
+
+    // Spam and floods are turned away before they cost an image lookup or a Datastore write.
+    Comment submitted = new Comment(0, text, name, limit, null, null, timestamp);
+    for (int i = 0; i < commentChecks.size(); i++) {
+      CommentCheck.Rejection rejection = commentChecks.get(i).check(submitted);
+      if (rejection != null) {
+        commentChecks.subList(0, i).forEach(check -> check.failed(submitted));
+        deleteUploads(request);
+        response.sendError(rejection.getStatus(), rejection.getMessage());
+        return;
+      }
+    }
+
     String imageUrl = getUploadedFileUrl(request, blobImg);
+    String thumbnailUrl = null;
+    if (imageUrl != null) {
+      thumbnailUrl = ServingUrlResolver.getResizedUrl(imageUrl, thumbnailSize);
+    }
 
     // Add input to current comments in datastore.
-    Entity taskEntity = new Entity(tblTitle);
-    taskEntity.setProperty(tblComment, text);
-    taskEntity.setProperty(tblName, name);
-    taskEntity.setProperty(tblTime, timestamp);
-    taskEntity.setProperty(tblLimit, limit);
-    taskEntity.setProperty(tblImage, imageUrl);
+    Comment comment =
+        new Comment(0, text, name, limit, imageUrl, thumbnailUrl, timestamp, parentId, 0);
+    Entity taskEntity = comment.toEntity();
+
+    CompletableFuture<Key> written;
+    boolean acknowledged = true;
+    try {
+      written = commentWriteQueue.submit(taskEntity);
+    } catch (CommentWriteQueue.UnacknowledgedException e) {
+      // The write may still land, so the uploads are kept and the callbacks below still attach.
+      logger.log(Level.WARNING, "A comment write was not acknowledged in time.", e);
+      written = e.getWrite();
+      acknowledged = false;
+    } catch (RejectedExecutionException e) {
+      commentChecks.forEach(check -> check.failed(submitted));
+      deleteUploads(request);
+      response.sendError(
+          HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Too many comments right now, try again.");
+      return;
+    } catch (RuntimeException e) {
+      // An acknowledged write that failed.
+      commentChecks.forEach(check -> check.failed(submitted));
+      throw e;
+    }
+
+    // Checks such as DuplicateCheck only remember a comment once it is actually stored.
+    written.whenComplete((key, error) -> {
+      for (CommentCheck check : commentChecks) {
+        if (error == null) {
+          check.written(submitted);
+        } else {
+          check.failed(submitted);
+        }
+      }
+    });
+
+    // Runs right away once the write is acknowledged, or later on the flushing request if deferred,
+    // where every callback in the batch runs in turn. So the callback only updates memory, and the
+    // counters, which are Datastore transactions, are queued for updateCounters().
+    // Replies only change their thread's count; the feed picks that up once it is folded in.
+    long threadId = parentId;
+    written.thenAccept(key -> {
+      if (threadId != 0) {
+        counterUpdates.add(() -> {
+          if (replyCounter.increment(threadId)) {
+            replyCountsChanged();
+          }
+        });
+        return;
+      }
+      CommentCache.Entry entry = toCacheEntry(taskEntity, null);
+      commentCache.addNewest(entry);
+      services.getBroadcaster().publish(entry.getComment(), entry.getJson());
+      feedVersion.bump(timestamp);
+      feedSnapshot.invalidate(timestamp);
+      counterUpdates.add(() -> services.getCommentStats().increment(limit, name));
+    });
+
+    if (!acknowledged) {
+      updateCounters();
+      response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+          "Your comment is taking a while to save. Check back before posting it again.");
+      return;
+    }
 
-    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
-    datastore.put(taskEntity);
+    // Redirect to index page. The version makes its /data/latest request skip the edge cache and
+    // the snapshot debounce, so the poster sees their own comment. Replies aren't in the feed.
+    if (parentId != 0) {
+      response.sendRedirect("/index.html");
+    } else {
+      response.sendRedirect("/index.html?" + paramVersion + "=" + timestamp);
+    }
+    updateCounters();
+  }
 
-    // Redirect to index page.
-    response.sendRedirect("/index.html");
+  /**
+   * Runs counter increments queued by write callbacks, on this request's own thread. In deferred
+   * mode an increment waits for the next POST. A failed increment is logged and dropped; the
+   * counts are approximate and can be rebuilt from the comments.
+   */
+  private void updateCounters() {
+    Runnable update;
+    for (int i = 0; i < maxCounterUpdatesPerPost && (update = counterUpdates.poll()) != null; i++) {
+      try {
+        update.run();
+      } catch (RuntimeException e) {
+        logger.log(Level.WARNING, "Could not update a comment counter.", e);
+      }
+    }
   }
 
-  /** Returns a URL that points to the uploaded file, or null if the user didn't upload a file. */
-  private String getUploadedFileUrl(HttpServletRequest request, String formInputElementName) {
-    BlobstoreService blobstoreService = BlobstoreServiceFactory.getBlobstoreService();
-    Map<String, List<BlobKey>> blobs = blobstoreService.getUploads(request);
-    List<BlobKey> blobKeys = blobs.get(blobImg);
+  /**
+   * Redirects to the current snapshot of the first page. The redirect is short-lived, but the
+   * snapshot it points to never changes, so the edge can keep it indefinitely. With a {@code v}
+   * parameter, as after a POST, the snapshot covers at least that feed version.
+   */
+  private void redirectToSnapshot(HttpServletRequest request, HttpServletResponse response)
+      throws IOException {
+    long minVersion = 0;
+    try {
+      String version = request.getParameter(paramVersion);
+      if (version != null) {
+        // A version from the future can't be covered yet, so it is capped at now.
+        minVersion = Math.min(Long.parseLong(version), System.currentTimeMillis());
+      }
+    } catch (NumberFormatException e) {
+      // Serve the current snapshot.
+    }
 
-    // User submitted form without selecting a file, so we can't get a URL. (dev server)
-    if (blobKeys == null || blobKeys.isEmpty()) {
-      return null;
+    // The change was made on another instance, so this one's cache doesn't have it.
+    if (minVersion > 0 && feedSnapshot.isBehind(minVersion)) {
+      commentCache.expire();
     }
+    FeedSnapshot.Snapshot snapshot = currentSnapshot(minVersion);
 
-    // Our form only contains a single file input, so get the first index.
-    BlobKey blobKey = blobKeys.get(0);
+    response.setHeader("Cache-Control", "public, max-age=" + latestMaxAgeSeconds);
+    response.sendRedirect("/data/snapshot/" + snapshot.getName());
+  }
+
+  /** Returns the current snapshot, rendering it from the first page if it is due. */
+  private FeedSnapshot.Snapshot currentSnapshot(long minVersion) {
+    return feedSnapshot.get(() -> {
+      List<CommentCache.Entry> page = readFirstPage(maxLimit);
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      try {
+        writePage(out, page, getNextCursor(page, maxLimit));
+      } catch (IOException e) {
+        // Writing to memory doesn't fail.
+        throw new UncheckedIOException(e);
+      }
+      return out.toByteArray();
+    }, minVersion);
+  }
 
-    // User submitted form without selecting a file, so we can't get a URL. (live server)
-    BlobInfo blobInfo = new BlobInfoFactory().loadBlobInfo(blobKey);
-    if (blobInfo.getSize() == 0) {
-      blobstoreService.delete(blobKey);
-      return null;
+  /** Writes the named snapshot, cacheable for a year since its name is a hash of its contents. */
+  private void writeSnapshot(HttpServletRequest request, HttpServletResponse response)
+      throws IOException {
+    String name = request.getPathInfo() == null ? "" : request.getPathInfo().substring(1);
+    if (!name.matches("[0-9a-f]{16}\\.json")) {
+      response.sendError(HttpServletResponse.SC_NOT_FOUND);
+      return;
     }
 
-    // We could check the validity of the file here, e.g. to make sure it's an image file
-    // https://stackoverflow.com/q/10779564/873165
+    FeedSnapshot.Snapshot snapshot = feedSnapshot.find(name);
+    if (snapshot == null) {
+      // Evicted from memcache. Answer with the current feed rather than redirecting, which could
+      // bounce between instances, and don't let it be cached under this name.
+      snapshot = currentSnapshot(0);
+      response.setHeader("Cache-Control", "no-store");
+    } else {
+      response.setHeader("Cache-Control", "public, max-age=31536000, immutable");
+    }
+    response.setContentType("application/json;");
+    response.setCharacterEncoding("UTF-8");
+    response.getOutputStream().write(snapshot.getData());
+  }
+
+  /**
+   * Writes a comment and its replies, oldest reply first, read with one ancestor query. Ancestor
+   * queries are strongly consistent, so a reply shows up as soon as it is written.
+   */
+  private void writeThread(HttpServletResponse response, long threadId) throws IOException {
+    Key threadKey = KeyFactory.createKey(tblTitle, threadId);
+    Query query = new Query().setAncestor(threadKey);
+
+    List<Entity> entities;
+    try (Metrics.Span span = services.getMetrics().span("datastore_query")) {
+      entities = services.getDatastore().prepare(query)
+          .asList(FetchOptions.Builder.withLimit(maxThreadSize + 1));
+    }
 
-    // Use ImagesService to get a URL that points to the uploaded file.
-    ImagesService imagesService = ImagesServiceFactory.getImagesService();
-    ServingUrlOptions options = ServingUrlOptions.Builder.withBlobKey(blobKey);
+    Comment root = null;
+    List<Comment> replies = new ArrayList<>();
+    for (Entity entity : entities) {
+      if (entity.getKey().equals(threadKey)) {
+        root = Comment.fromEntity(entity);
+      } else if (entity.getKind().equals(Comment.REPLY_KIND)) {
+        replies.add(Comment.fromEntity(entity));
+      }
+    }
+    if (root == null) {
+      response.sendError(HttpServletResponse.SC_NOT_FOUND, "No such comment.");
+      return;
+    }
+    replies.sort(Comparator.comparingLong(Comment::getTimestamp));
+
+    // Replies posted since the last fold aren't in the feed's count yet; catch it up.
+    // The fold is a write, so a contended or slow one mustn't fail this read.
+    if (root.getReplyCount() < replies.size()) {
+      try {
+        if (replyCounter.fold(threadId)) {
+          replyCountsChanged();
+        }
+      } catch (RuntimeException e) {
+        logger.log(Level.WARNING, "Could not fold the reply count of thread " + threadId + ".", e);
+      }
+    }
+
+    response.setContentType("application/json;");
+    response.setCharacterEncoding("UTF-8");
+    JsonWriter writer = new JsonWriter(
+        new OutputStreamWriter(response.getOutputStream(), StandardCharsets.UTF_8));
+    writer.beginObject();
+    writer.name("comment");
+    gson.toJson(root, Comment.class, writer);
+    writer.name("replies");
+    writer.beginArray();
+    for (Comment reply : replies) {
+      gson.toJson(reply, Comment.class, writer);
+    }
+    writer.endArray();
+    writer.endObject();
+    writer.flush();
+  }
+
+  /** Returns the newest {@code limit} comments, served from the cache whenever it can answer. */
+  private List<CommentCache.Entry> readFirstPage(int limit) {
+    List<CommentCache.Entry> page = commentCache.lookup(limit);
+    if (page == null) {
+      page = reloadCache(limit);
+    }
+    return page;
+  }
+
+  /** Returns the cursor after a first page of {@code limit} comments. */
+  private String getNextCursor(List<CommentCache.Entry> page, int limit) {
+    // A short page means there are no more live comments; carry on into the archive, if any.
+    if (page.size() == limit) {
+      return page.get(page.size() - 1).getCursorAfter();
+    }
+    return CommentArchive.getStartCursor(services.getFeedDatastore());
+  }
+
+  /**
+   * Reloads the cache from Datastore and returns its first {@code limit} entries. Only one request
+   * reloads at a time; the others serve the cached comments they already have, if a page cut from
+   * them still says where the next page starts.
+   */
+  private List<CommentCache.Entry> reloadCache(int limit) {
+    boolean leader = reloading.compareAndSet(false, true);
+    if (!leader) {
+      List<CommentCache.Entry> stale = commentCache.stalePage(limit);
+      if (stale != null) {
+        return stale;
+      }
+      // Nothing usable cached, so this request has to read Datastore too.
+    }
 
-    // To support running in Google Cloud Shell with AppEngine's devserver, we must use the relative
-    // path to the image, rather than the path returned by imagesService which contains a host.
     try {
-      URL url = new URL(imagesService.getServingUrl(options));
-      return url.getPath();
-    } catch (MalformedURLException e) {
-      return imagesService.getServingUrl(options);
+      List<CommentCache.Entry> newest = readComments(commentCache.getCapacity());
+      commentCache.load(newest, newest.size() < commentCache.getCapacity());
+      List<CommentCache.Entry> page = commentCache.stalePage(limit);
+      if (page != null) {
+        return page;
+      }
+      // The page would end on a comment written during the read; every read entry has a cursor.
+      return new ArrayList<>(newest.subList(0, Math.min(limit, newest.size())));
+    } catch (DatastoreTimeoutException | ApiDeadlineExceededException e) {
+      // Keep serving the last known comments while Datastore is slow.
+      List<CommentCache.Entry> stale = commentCache.stalePage(limit);
+      if (stale == null) {
+        throw e;
+      }
+      return stale;
+    } finally {
+      if (leader) {
+        reloading.set(false);
+      }
+    }
+  }
+
+  /** Returns true if the request's validators match the current version of the feed. */
+  private boolean isNotModified(HttpServletRequest request, String etag, long version) {
+    String ifNoneMatch = request.getHeader("If-None-Match");
+    if (ifNoneMatch != null) {
+      for (String tag : ifNoneMatch.split(",")) {
+        tag = tag.trim();
+        if (tag.startsWith("W/")) {
+          tag = tag.substring(2);
+        }
+        if (tag.equals(etag) || tag.equals("*")) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    // HTTP dates only have second precision.
+    long ifModifiedSince = request.getDateHeader("If-Modified-Since");
+    return ifModifiedSince != -1 && version / 1000 <= ifModifiedSince / 1000;
+  }
+
+  /**
+   * Called when a reply count was folded into a comment. The cached feed still shows the old
+   * count, so it is dropped, and the version moves on so clients don't get a 304 for it.
+   */
+  private void replyCountsChanged() {
+    long now = System.currentTimeMillis();
+    commentCache.expire();
+    feedSnapshot.invalidate(now);
+    feedVersion.bump(now);
+  }
+
+  /**
+   * Returns the time of the newest change to the feed: the newest comment's timestamp, or the last
+   * fold, import or archive run on any instance if that is later. A change this instance hasn't
+   * seen yet also expires its cached feed.
+   */
+  private long readNewestTimestamp() {
+    long lastUpdate = readLastUpdate();
+    try (Metrics.Span span = services.getMetrics().span("datastore_query")) {
+      lastUpdate = Math.max(
+          lastUpdate, CommentArchive.getLastArchivedAt(services.getFeedDatastore()));
+    }
+    if (lastUpdate > updateSeen.getAndAccumulate(lastUpdate, Math::max)) {
+      commentCache.expire();
+      feedSnapshot.invalidate(lastUpdate);
+    }
+    return Math.max(lastUpdate, readNewestCommentTimestamp());
+  }
+
+  /**
+   * Returns when any instance last changed a posted comment, by a fold or an import, or 0 if none
+   * has. Reads only the {@code updated} property, from its built-in single-property index.
+   */
+  private long readLastUpdate() {
+    Query query = new Query(tblTitle)
+        .addProjection(new PropertyProjection(Comment.PROPERTY_UPDATED, Long.class))
+        .addSort(Comment.PROPERTY_UPDATED, SortDirection.DESCENDING);
+    DatastoreService datastore = services.getFeedDatastore();
+    List<Entity> newest;
+    try (Metrics.Span span = services.getMetrics().span("datastore_query")) {
+      newest = datastore.prepare(query).asList(FetchOptions.Builder.withLimit(1));
+    }
+    return newest.isEmpty() ? 0 : (long) newest.get(0).getProperty(Comment.PROPERTY_UPDATED);
+  }
+
+  /** Returns the timestamp of the newest comment, or 0 if there are none. */
+  private long readNewestCommentTimestamp() {
+    Query query = new Query(tblTitle).addSort(tblTime, SortDirection.DESCENDING);
+    DatastoreService datastore = services.getFeedDatastore();
+    List<Entity> newest;
+    try (Metrics.Span span = services.getMetrics().span("datastore_query")) {
+      newest = datastore.prepare(query).asList(FetchOptions.Builder.withLimit(1));
+    }
+    if (newest.isEmpty()) {
+      return 0;
+    }
+    return (long) newest.get(0).getProperty(tblTime);
+  }
+
+  /** Reads the newest {@code limit} comments along with the cursor after each one. */
+  private List<CommentCache.Entry> readComments(int limit) {
+    Query query = new Query(tblTitle).addSort(tblTime, SortDirection.DESCENDING);
+    FetchOptions fetchOptions = FetchOptions.Builder.withLimit(limit);
+
+    // Results are fetched in batches while iterating, so read them all before encoding any.
+    DatastoreService datastore = services.getFeedDatastore();
+    List<Entity> entities = new ArrayList<>();
+    List<String> cursors = new ArrayList<>();
+    try (Metrics.Span span = services.getMetrics().span("datastore_query")) {
+      QueryResultIterator<Entity> results =
+          datastore.prepare(query).asQueryResultIterator(fetchOptions);
+      while (results.hasNext()) {
+        entities.add(results.next());
+        cursors.add(results.getCursor().toWebSafeString());
+      }
+    }
+
+    List<CommentCache.Entry> entries = new ArrayList<>();
+    for (int i = 0; i < entities.size(); i++) {
+      entries.add(toCacheEntry(entities.get(i), cursors.get(i)));
+    }
+    return entries;
+  }
+
+  /** Converts a comment entity into a cache entry holding its JSON encoding. */
+  private CommentCache.Entry toCacheEntry(Entity entity, String cursorAfter) {
+    Comment comment = Comment.fromEntity(entity);
+    byte[] json;
+    try (Metrics.Span span = services.getMetrics().span("json_encode")) {
+      json = gson.toJson(comment).getBytes(StandardCharsets.UTF_8);
+    }
+    return new CommentCache.Entry(comment, json, cursorAfter);
+  }
+
+  /**
+   * Returns the Datastore filters for the {@code author}, {@code since} (inclusive) and
+   * {@code until} (exclusive) parameters that are present.
+   */
+  private List<Filter> getFilters(HttpServletRequest request) {
+    List<Filter> filters = new ArrayList<>();
+
+    String author = request.getParameter(paramAuthor);
+    if (author != null && !author.isEmpty()) {
+      filters.add(new FilterPredicate(tblName, FilterOperator.EQUAL, author));
+    }
+
+    String since = request.getParameter(paramSince);
+    if (since != null && !since.isEmpty()) {
+      long sinceMillis = Long.parseLong(since);
+      filters.add(new FilterPredicate(tblTime, FilterOperator.GREATER_THAN_OR_EQUAL, sinceMillis));
+    }
+
+    String until = request.getParameter(paramUntil);
+    if (until != null && !until.isEmpty()) {
+      long untilMillis = Long.parseLong(until);
+      filters.add(new FilterPredicate(tblTime, FilterOperator.LESS_THAN, untilMillis));
+    }
+
+    return filters;
+  }
+
+  /**
+   * Writes a page of comments matching {@code filters}, starting at {@code cursor} if not null,
+   * one entity at a time, so the request never holds more than a single comment in memory.
+   */
+  private void streamComments(HttpServletResponse response, List<Filter> filters, Cursor cursor,
+      int limit) throws IOException {
+    Query query = new Query(tblTitle).addSort(tblTime, SortDirection.DESCENDING);
+    if (filters.size() == 1) {
+      query.setFilter(filters.get(0));
+    } else if (filters.size() > 1) {
+      query.setFilter(CompositeFilterOperator.and(filters));
+    }
+
+    FetchOptions fetchOptions = FetchOptions.Builder.withLimit(limit);
+    if (cursor != null) {
+      fetchOptions.startCursor(cursor);
+    }
+
+    DatastoreService datastore = services.getFeedDatastore();
+    QueryResultIterator<Entity> results =
+        datastore.prepare(query).asQueryResultIterator(fetchOptions);
+
+    response.setContentType("application/json;");
+    response.setCharacterEncoding("UTF-8");
+    JsonWriter writer = new JsonWriter(
+        new OutputStreamWriter(response.getOutputStream(), StandardCharsets.UTF_8));
+
+    writer.beginObject();
+    writer.name("comments");
+    writer.beginArray();
+    int count = 0;
+    // Fetching, encoding and writing are interleaved here, so they're timed as one span.
+    try (Metrics.Span span = services.getMetrics().span("datastore_stream")) {
+      while (results.hasNext()) {
+        gson.toJson(Comment.fromEntity(results.next()), Comment.class, writer);
+        count++;
+      }
+    }
+    writer.endArray();
+
+    // A short page means there are no more live comments. The archive isn't indexed, so only the
+    // unfiltered feed carries on into it.
+    writer.name("nextCursor");
+    String archiveCursor = null;
+    if (count < limit && filters.isEmpty()) {
+      archiveCursor = CommentArchive.getStartCursor(datastore);
+    }
+    if (count == limit) {
+      writer.value(results.getCursor().toWebSafeString());
+    } else if (archiveCursor != null) {
+      writer.value(archiveCursor);
+    } else {
+      writer.nullValue();
+    }
+    writer.endObject();
+    writer.flush();
+  }
+
+  /** Writes the page as {"comments": [...], "nextCursor": ...} from the pre-encoded comments. */
+  private void writePage(HttpServletResponse response, List<CommentCache.Entry> page,
+      String nextCursor) throws IOException {
+    response.setContentType("application/json;");
+    response.setCharacterEncoding("UTF-8");
+    writePage(response.getOutputStream(), page, nextCursor);
+  }
+
+  private void writePage(OutputStream out, List<CommentCache.Entry> page, String nextCursor)
+      throws IOException {
+    out.write("{\"comments\":[".getBytes(StandardCharsets.UTF_8));
+    for (int i = 0; i < page.size(); i++) {
+      if (i > 0) {
+        out.write(',');
+      }
+      out.write(page.get(i).getJson());
+    }
+    String tail = "],\"nextCursor\":" + gson.toJson(nextCursor) + "}\n";
+    out.write(tail.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /** Returns the requested page size, clamped to [1, maxLimit], or the default if missing. */
+  private int getLimit(HttpServletRequest request) {
+    String limitString = request.getParameter(paramLimit);
+    if (limitString == null) {
+      return defaultLimit;
+    }
+
+    int limit;
+    try {
+      limit = Integer.parseInt(limitString);
+    } catch (NumberFormatException e) {
+      return defaultLimit;
+    }
+    return Math.max(1, Math.min(limit, maxLimit));
+  }
+
+  /** Deletes anything uploaded with a comment that was rejected. */
+  private void deleteUploads(HttpServletRequest request) {
+    BlobstoreService blobstoreService = services.getBlobstore();
+    for (List<BlobKey> blobKeys : blobstoreService.getUploads(request).values()) {
+      blobstoreService.delete(blobKeys.toArray(new BlobKey[0]));
+    }
+  }
+
+  /** Returns a URL that points to the uploaded file, or null if the user didn't upload a file. */
+  private String getUploadedFileUrl(HttpServletRequest request, String formInputElementName) {
+    BlobstoreService blobstoreService = services.getBlobstore();
+    try (Metrics.Span span = services.getMetrics().span("blobstore_lookup")) {
+      Map<String, List<BlobKey>> blobs = blobstoreService.getUploads(request);
+      List<BlobKey> blobKeys = blobs.get(blobImg);
+
+      // User submitted form without selecting a file, so we can't get a URL. (dev server)
+      if (blobKeys == null || blobKeys.isEmpty()) {
+        return null;
+      }
+
+      // Our form only contains a single file input, so get the first index.
+      BlobKey blobKey = blobKeys.get(0);
+
+      // User submitted form without selecting a file, so the blob is empty. (live server)
+      return services.getServingUrlResolver().getServingUrl(blobKey);
     }
   }
 }
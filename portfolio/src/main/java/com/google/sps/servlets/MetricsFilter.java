@@ -0,0 +1,193 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.sps.data.Metrics;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * Records the latency, response size and status of every request in {@link Metrics}, keyed by
+ * servlet path. Requests that go async, like /data/stream, are recorded when they complete. The
+ * filter is mapped first in web.xml, so sizes are what {@link CompressionFilter} actually sent.
+ */
+public class MetricsFilter implements Filter {
+  private Metrics metrics;
+
+  @Override
+  public void init(FilterConfig config) {
+    metrics = ServiceRegistry.get(config.getServletContext()).getMetrics();
+  }
+
+  @Override
+  public void doFilter(ServletRequest servletRequest, ServletResponse servletResponse,
+      FilterChain chain) throws IOException, ServletException {
+    HttpServletRequest request = (HttpServletRequest) servletRequest;
+    HttpServletResponse response = (HttpServletResponse) servletResponse;
+    long start = System.nanoTime();
+    String route = request.getServletPath();
+    CountingResponse counted = new CountingResponse(response);
+
+    try {
+      chain.doFilter(request, counted);
+    } finally {
+      if (request.isAsyncStarted()) {
+        request.getAsyncContext().addListener(new AsyncListener() {
+          @Override
+          public void onComplete(AsyncEvent event) {
+            record(route, counted, start);
+          }
+
+          @Override
+          public void onTimeout(AsyncEvent event) {}
+
+          @Override
+          public void onError(AsyncEvent event) {}
+
+          @Override
+          public void onStartAsync(AsyncEvent event) {}
+        });
+      } else {
+        record(route, counted, start);
+      }
+    }
+  }
+
+  @Override
+  public void destroy() {}
+
+  private void record(String route, CountingResponse response, long start) {
+    metrics.recordRequest(
+        route, response.getStatus(), System.nanoTime() - start, response.getByteCount());
+  }
+
+  /**
+   * Counts the bytes the servlet writes. Writer output is counted as its UTF-8 length, which is
+   * the encoding every servlet here uses. Async output written through the original response
+   * bypasses the wrapper and is not counted.
+   */
+  private static final class CountingResponse extends HttpServletResponseWrapper {
+    private final AtomicLong bytes = new AtomicLong();
+    private ServletOutputStream outputStream;
+    private PrintWriter writer;
+
+    CountingResponse(HttpServletResponse response) {
+      super(response);
+    }
+
+    long getByteCount() {
+      return bytes.get();
+    }
+
+    @Override
+    public synchronized ServletOutputStream getOutputStream() throws IOException {
+      if (outputStream == null) {
+        ServletOutputStream out = super.getOutputStream();
+        outputStream = new ServletOutputStream() {
+          @Override
+          public void write(int b) throws IOException {
+            out.write(b);
+            bytes.incrementAndGet();
+          }
+
+          @Override
+          public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            bytes.addAndGet(len);
+          }
+
+          @Override
+          public void flush() throws IOException {
+            out.flush();
+          }
+
+          @Override
+          public void close() throws IOException {
+            out.close();
+          }
+
+          @Override
+          public boolean isReady() {
+            return out.isReady();
+          }
+
+          @Override
+          public void setWriteListener(WriteListener listener) {
+            out.setWriteListener(listener);
+          }
+        };
+      }
+      return outputStream;
+    }
+
+    @Override
+    public synchronized PrintWriter getWriter() throws IOException {
+      if (writer == null) {
+        Writer out = super.getWriter();
+        writer = new PrintWriter(new Writer() {
+          @Override
+          public void write(char[] chars, int off, int len) throws IOException {
+            out.write(chars, off, len);
+            bytes.addAndGet(utf8Length(chars, off, len));
+          }
+
+          @Override
+          public void flush() throws IOException {
+            out.flush();
+          }
+
+          @Override
+          public void close() throws IOException {
+            out.close();
+          }
+        });
+      }
+      return writer;
+    }
+
+    private static long utf8Length(char[] chars, int off, int len) {
+      long length = 0;
+      for (int i = off; i < off + len; i++) {
+        char c = chars[i];
+        if (c < 0x80) {
+          length += 1;
+        } else if (c < 0x800) {
+          length += 2;
+        } else if (Character.isHighSurrogate(c)) {
+          // Counts 4 bytes for the pair; the low surrogate adds nothing.
+          length += 4;
+        } else if (!Character.isLowSurrogate(c)) {
+          length += 3;
+        }
+      }
+      return length;
+    }
+  }
+}
@@ -0,0 +1,67 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.sps.data.Comment;
+import com.google.sps.data.CommentJson;
+import com.google.sps.data.CommentSearch;
+import java.io.IOException;
+import java.util.List;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Searches comment messages and authors. {@code q} is split into words, and a comment matches when
+ * every word is the start of one of its words, e.g. {@code /data/search?q=gre goa}.
+ */
+@WebServlet("/data/search")
+public class SearchServlet extends HttpServlet {
+  private final static int defaultLimit = 20;
+  private final static int maxLimit = 50;
+
+  @Override
+  public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    String query = request.getParameter("q");
+    if (query == null || query.trim().isEmpty()) {
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Missing q parameter.");
+      return;
+    }
+
+    int limit = defaultLimit;
+    String limitString = request.getParameter("limit");
+    if (limitString != null) {
+      try {
+        limit = Math.max(1, Math.min(Integer.parseInt(limitString), maxLimit));
+      } catch (NumberFormatException e) {
+        // Keep the default.
+      }
+    }
+
+    DatastoreService datastore = ServiceRegistry.get(getServletContext()).getFeedDatastore();
+    List<Comment> comments = CommentSearch.search(datastore, query, limit);
+
+    Gson gson = CommentJson.GSON;
+    JsonObject result = new JsonObject();
+    result.add("comments", gson.toJsonTree(comments));
+
+    response.setContentType("application/json;");
+    response.getWriter().println(gson.toJson(result));
+  }
+}
@@ -0,0 +1,163 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.appengine.api.blobstore.BlobstoreService;
+import com.google.appengine.api.blobstore.BlobstoreServiceFactory;
+import com.google.appengine.api.datastore.AsyncDatastoreService;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceConfig;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.ReadPolicy;
+import com.google.appengine.api.images.ImagesService;
+import com.google.appengine.api.images.ImagesServiceFactory;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.sps.data.CommentBroadcaster;
+import com.google.sps.data.CommentStats;
+import com.google.sps.data.Metrics;
+import com.google.sps.data.ReplyCounter;
+import com.google.sps.data.ServingUrlResolver;
+import com.google.sps.data.UploadUrlPool;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+import javax.servlet.annotation.WebListener;
+
+/**
+ * Creates the App Engine service clients once, when the app starts, and shares them with every
+ * servlet through the {@code ServletContext}. Deadlines and the read policy for feed reads are
+ * system properties in appengine-web.xml.
+ */
+@WebListener
+public class ServiceRegistry implements ServletContextListener {
+  private final static String attributeName = ServiceRegistry.class.getName();
+
+  private DatastoreService datastore;
+  private DatastoreService feedDatastore;
+  private AsyncDatastoreService asyncDatastore;
+  private BlobstoreService blobstore;
+  private ImagesService images;
+  private MemcacheService memcache;
+  private ServingUrlResolver servingUrlResolver;
+  private CommentBroadcaster broadcaster;
+  private UploadUrlPool uploadUrlPool;
+  private Metrics metrics;
+  private CommentStats commentStats;
+  private ReplyCounter replyCounter;
+
+  /** Returns the registry created for {@code context} when the app started. */
+  public static ServiceRegistry get(ServletContext context) {
+    return (ServiceRegistry) context.getAttribute(attributeName);
+  }
+
+  @Override
+  public void contextInitialized(ServletContextEvent event) {
+    double deadlineSeconds =
+        Double.parseDouble(System.getProperty("datastore.deadlineSeconds", "5"));
+    ReadPolicy.Consistency feedConsistency = ReadPolicy.Consistency.valueOf(
+        System.getProperty("datastore.feedReadConsistency", "eventual").toUpperCase());
+
+    DatastoreServiceConfig config = DatastoreServiceConfig.Builder.withDeadline(deadlineSeconds);
+    DatastoreServiceConfig feedConfig = DatastoreServiceConfig.Builder.withDeadline(deadlineSeconds)
+        .readPolicy(new ReadPolicy(feedConsistency));
+
+    datastore = DatastoreServiceFactory.getDatastoreService(config);
+    feedDatastore = DatastoreServiceFactory.getDatastoreService(feedConfig);
+    asyncDatastore = DatastoreServiceFactory.getAsyncDatastoreService(config);
+    blobstore = BlobstoreServiceFactory.getBlobstoreService();
+    images = ImagesServiceFactory.getImagesService();
+    memcache = MemcacheServiceFactory.getMemcacheService();
+    servingUrlResolver = new ServingUrlResolver(blobstore, images, 1000);
+    broadcaster = new CommentBroadcaster(50);
+    // Upload sessions last 10 minutes; stop handing a URL out after 5 so the visitor has time.
+    int poolSize = Integer.getInteger("uploads.pool.size", 20);
+    int poolLowWater = Integer.getInteger("uploads.pool.lowWaterMark", poolSize / 4);
+    uploadUrlPool = new UploadUrlPool(blobstore, "/data", poolSize, poolLowWater, 5 * 60 * 1000);
+
+    // Eight shards take several counted comments a second; reads are cached for 30 seconds.
+    commentStats = new CommentStats(datastore, 8, 30 * 1000);
+
+    // A busy thread's comment is rewritten with its reply count at most every ten seconds.
+    replyCounter = new ReplyCounter(datastore, 10 * 1000, 1000);
+
+    metrics = new Metrics();
+    metrics.registerGauge("upload_url_pool_size", "Pre-minted upload URLs ready to hand out.",
+        uploadUrlPool::size);
+    metrics.registerCounter("upload_url_pool_hits_total",
+        "Upload URL requests served from the pool.", uploadUrlPool::getHitCount);
+    metrics.registerCounter("upload_url_pool_misses_total",
+        "Upload URL requests that had to mint a URL.", uploadUrlPool::getMissCount);
+    metrics.registerCounter("upload_url_pool_expired_total",
+        "Pooled upload URLs dropped before use.", uploadUrlPool::getExpiredCount);
+
+    event.getServletContext().setAttribute(attributeName, this);
+  }
+
+  @Override
+  public void contextDestroyed(ServletContextEvent event) {
+    event.getServletContext().removeAttribute(attributeName);
+  }
+
+  /** Returns the strongly consistent Datastore client, used for writes and counters. */
+  public DatastoreService getDatastore() {
+    return datastore;
+  }
+
+  /** Returns the Datastore client for feed reads, which may use eventual consistency. */
+  public DatastoreService getFeedDatastore() {
+    return feedDatastore;
+  }
+
+  public AsyncDatastoreService getAsyncDatastore() {
+    return asyncDatastore;
+  }
+
+  public BlobstoreService getBlobstore() {
+    return blobstore;
+  }
+
+  public ImagesService getImages() {
+    return images;
+  }
+
+  public MemcacheService getMemcache() {
+    return memcache;
+  }
+
+  public ServingUrlResolver getServingUrlResolver() {
+    return servingUrlResolver;
+  }
+
+  public CommentBroadcaster getBroadcaster() {
+    return broadcaster;
+  }
+
+  public UploadUrlPool getUploadUrlPool() {
+    return uploadUrlPool;
+  }
+
+  public Metrics getMetrics() {
+    return metrics;
+  }
+
+  public CommentStats getCommentStats() {
+    return commentStats;
+  }
+
+  public ReplyCounter getReplyCounter() {
+    return replyCounter;
+  }
+}
@@ -0,0 +1,56 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.sps.data.Metrics;
+import com.google.sps.data.UploadUrlPool;
+import java.io.IOException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Tops up the upload URL pool outside of any visitor's request, so /blobstore-url never waits on
+ * it. App Engine sends a warmup request to each new instance. After that, /blobstore-url queues a
+ * task here whenever its pool runs low, and cron.xml calls the same path every minute as a
+ * backstop. A task is served by whichever instance takes it, and every instance that runs low
+ * queues one, so busy instances get refilled in proportion to their traffic.
+ */
+@WebServlet({UploadUrlRefillServlet.taskPath, "/_ah/warmup"})
+public class UploadUrlRefillServlet extends HttpServlet {
+  final static String taskPath = "/tasks/refill-upload-urls";
+
+  @Override
+  public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    // App Engine only routes /_ah/ paths internally, and strips the cron and task queue headers
+    // from outside requests.
+    if (!request.getServletPath().startsWith("/_ah/")
+        && !"true".equals(request.getHeader("X-Appengine-Cron"))
+        && request.getHeader("X-AppEngine-QueueName") == null) {
+      response.sendError(HttpServletResponse.SC_FORBIDDEN);
+      return;
+    }
+
+    ServiceRegistry services = ServiceRegistry.get(getServletContext());
+    UploadUrlPool pool = services.getUploadUrlPool();
+    try (Metrics.Span span = services.getMetrics().span("upload_url_refill")) {
+      pool.refill();
+    }
+
+    response.setContentType("text/plain");
+    response.getWriter().println("Pool has " + pool.size() + " upload URLs.");
+  }
+}
@@ -18,26 +18,32 @@
 // 'undefined' in lint checks
 
 
+// Stream of new comments, opened once per page.
+let commentStream = null;
+
 /** Fetches comments from the server and adds them to the DOM. */
 function loadCommentSection() {
   fetchBlobUrlAndShowForm();
+  subscribeToNewComments();
+
+  // Every visitor reads the same cached snapshot and keeps as many comments as they asked for.
+  // After posting, the page carries the new feed version so the snapshot includes the comment.
+  const limit = document.getElementById('commentLimit').value;
+  const version = new URLSearchParams(window.location.search).get('v');
+  fetch(version ? '/data/latest?v=' + encodeURIComponent(version) : '/data/latest')
+      .then((response) => response.json())
+      .then((data) => {
+        const commentElements = document.getElementById('comments');
+        commentElements.innerText = '';
+
+        data.comments.slice(0, limit).forEach((comment) => {
+          commentElements.appendChild(createCommentElement(comment));
+        });
+      });
 
-  fetch('/data').then((response) => response.json()).then((data) => {
-    const commentElements = document.getElementById('comments');
-    commentElements.innerText = '';
-    const limit = document.getElementById('commentLimit').value;
-    const limitMap = new Map();
-    let count = 0;
-
-    data.forEach((comment) => {
-      if (count < limit) {
-        commentElements.appendChild(createCommentElement(comment));
-        count++;
-      }
-      const mapKey = comment.commentLimit;
-      const currentLimit = limitMap.has(mapKey) ? limitMap.get(mapKey) : 0;
-      limitMap.set(mapKey, currentLimit + 1);
-    });
+  // The server keeps running counts, so the chart doesn't need every comment.
+  fetch('/data/stats').then((response) => response.json()).then((counts) => {
+    const limitMap = new Map(Object.entries(counts));
 
     google.charts.load('current', {packages: ['corechart']});
     google.charts.setOnLoadCallback(function() {
@@ -46,6 +52,26 @@ function loadCommentSection() {
   });
 }
 
+/** Adds comments posted after the page loaded to the top of the list. */
+function subscribeToNewComments() {
+  if (commentStream != null || typeof EventSource === 'undefined') {
+    return;
+  }
+
+  commentStream = new EventSource('/data/stream');
+  commentStream.onmessage = (event) => {
+    const commentElements = document.getElementById('comments');
+    const comment = JSON.parse(event.data);
+    commentElements.prepend(createCommentElement(comment));
+
+    // Keep showing only as many comments as the user asked for.
+    const limit = document.getElementById('commentLimit').value;
+    while (commentElements.children.length > limit) {
+      commentElements.lastChild.remove();
+    }
+  };
+}
+
 /** Creates an element that represents a comment with a delete button. */
 function createCommentElement(comment) {
   const commentElement = document.createElement('li');
@@ -64,11 +90,25 @@ function createCommentElement(comment) {
 
   const imageURL = comment.imageURL;
   if (imageURL != null) {
+    // Show the small variant and link to the full-size image.
+    const linkElement = document.createElement('a');
+    linkElement.className = 'image';
+    linkElement.setAttribute('href', imageURL);
+
     const imgElement = document.createElement('img');
-    imgElement.className = 'image';
-    imgElement.setAttribute('src', imageURL);
+    imgElement.setAttribute('src', comment.thumbnailURL || imageURL);
+    imgElement.setAttribute('loading', 'lazy');
 
-    commentElement.appendChild(imgElement);
+    linkElement.appendChild(imgElement);
+    commentElement.appendChild(linkElement);
+  }
+
+  if (comment.replyCount > 0) {
+    const repliesElement = document.createElement('span');
+    repliesElement.className = 'replies';
+    repliesElement.innerText = comment.replyCount +
+        (comment.replyCount == 1 ? ' reply' : ' replies');
+    commentElement.appendChild(repliesElement);
   }
 
   return commentElement;
@@ -95,7 +135,20 @@ function drawChart(limitMap) {
   chart.draw(data, options);
 }
 
+// When the form last got an upload URL. Upload sessions expire, so one is reused for 5 minutes.
+let uploadUrlFetchedAt = 0;
+const uploadUrlMaxAgeMillis = 5 * 60 * 1000;
+
+/**
+ * Points the form at a Blobstore upload URL. Changing the comment limit reloads the comments but
+ * keeps the form's URL, since each one costs the server an upload session.
+ */
 function fetchBlobUrlAndShowForm() {
+  if (Date.now() - uploadUrlFetchedAt < uploadUrlMaxAgeMillis) {
+    return;
+  }
+  uploadUrlFetchedAt = Date.now();
+
   fetch('/blobstore-url')
       .then((response) => {
         return response.text();
@@ -0,0 +1,204 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Checks {@link CommentCache} on its own and with loads, writes and reads racing each other. */
+@RunWith(JUnit4.class)
+public final class CommentCacheTest {
+  private static final int CAPACITY = 50;
+  private static final long TTL_MILLIS = 60 * 1000;
+  private static final int ROUNDS = 2000;
+
+  private ExecutorService executor;
+
+  @Before
+  public void setUp() {
+    executor = Executors.newFixedThreadPool(6);
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void coldCacheServesNothing() {
+    CommentCache cache = new CommentCache(CAPACITY, TTL_MILLIS);
+
+    Assert.assertNull(cache.lookup(5));
+    Assert.assertNull(cache.stalePage(5));
+    Assert.assertEquals(1, cache.getMissCount());
+  }
+
+  @Test
+  public void pageEndingOnAWriteIsNotServed() {
+    CommentCache cache = new CommentCache(CAPACITY, TTL_MILLIS);
+    cache.load(Arrays.asList(read(2), read(1)), false);
+    cache.addNewest(written(3));
+
+    // [3, 2] ends on a comment read from Datastore, [3] on one that has no cursor.
+    Assert.assertEquals(2, cache.stalePage(2).size());
+    Assert.assertNull(cache.stalePage(1));
+    Assert.assertNull(cache.lookup(1));
+  }
+
+  @Test
+  public void completeCacheServesAShortPage() {
+    CommentCache cache = new CommentCache(CAPACITY, TTL_MILLIS);
+    cache.load(Arrays.asList(read(1)), true);
+    cache.addNewest(written(2));
+
+    Assert.assertEquals(2, cache.lookup(5).size());
+    Assert.assertEquals(2, cache.stalePage(2).size());
+  }
+
+  @Test
+  public void loadKeepsWritesTheReadMissed() {
+    CommentCache cache = new CommentCache(CAPACITY, TTL_MILLIS);
+    cache.load(Arrays.asList(read(1)), true);
+    cache.addNewest(written(3));
+    cache.addNewest(written(2));
+
+    // The read saw comment 2 but not 3, which was written after it started.
+    cache.load(Arrays.asList(read(2), read(1)), true);
+
+    List<Long> ids = ids(cache.stalePage(CAPACITY));
+    Assert.assertEquals(Arrays.asList(3L, 2L, 1L), ids);
+  }
+
+  @Test
+  public void parallelLoadsAndWritesKeepTheCacheConsistent() throws Exception {
+    CommentCache cache = new CommentCache(CAPACITY, TTL_MILLIS);
+    AtomicLong nextId = new AtomicLong();
+    // Comments "in Datastore", newest last; a load reads the newest CAPACITY of them.
+    List<Long> stored = new ArrayList<>();
+    cache.load(new ArrayList<>(), true);
+
+    CountDownLatch start = new CountDownLatch(1);
+    List<Future<?>> tasks = new ArrayList<>();
+    for (int writer = 0; writer < 2; writer++) {
+      tasks.add(executor.submit(() -> {
+        start.await();
+        for (int i = 0; i < ROUNDS; i++) {
+          // Held across the add so comments reach the cache in the order they were stored.
+          synchronized (stored) {
+            long id = nextId.incrementAndGet();
+            stored.add(id);
+            cache.addNewest(written(id));
+          }
+        }
+        return null;
+      }));
+    }
+    for (int loader = 0; loader < 2; loader++) {
+      tasks.add(executor.submit(() -> {
+        start.await();
+        for (int i = 0; i < ROUNDS / 10; i++) {
+          List<CommentCache.Entry> newest = new ArrayList<>();
+          synchronized (stored) {
+            for (int j = stored.size() - 1; j >= 0 && newest.size() < CAPACITY; j--) {
+              newest.add(read(stored.get(j)));
+            }
+          }
+          cache.load(newest, newest.size() < CAPACITY);
+        }
+        return null;
+      }));
+    }
+    for (int reader = 0; reader < 2; reader++) {
+      tasks.add(executor.submit(() -> {
+        start.await();
+        for (int i = 0; i < ROUNDS; i++) {
+          int limit = 1 + i % CAPACITY;
+          checkPage(cache.lookup(limit), limit);
+          checkPage(cache.stalePage(limit), limit);
+        }
+        return null;
+      }));
+    }
+
+    start.countDown();
+    for (Future<?> task : tasks) {
+      task.get(60, TimeUnit.SECONDS);
+    }
+
+    List<CommentCache.Entry> all = cache.stalePage(CAPACITY);
+    if (all != null) {
+      checkPage(all, CAPACITY);
+    }
+  }
+
+  /**
+   * A served page holds distinct comments, newest first, no more than asked for, and either ends
+   * on a comment with a cursor or is shorter than asked because there are no more comments.
+   */
+  private static void checkPage(List<CommentCache.Entry> page, int limit) {
+    if (page == null) {
+      return;
+    }
+    Assert.assertTrue(page.size() <= limit);
+    Set<Long> seen = new HashSet<>();
+    long previous = Long.MAX_VALUE;
+    for (CommentCache.Entry entry : page) {
+      long id = entry.getComment().getId();
+      Assert.assertTrue("Duplicate comment " + id, seen.add(id));
+      Assert.assertTrue("Out of order at comment " + id, id < previous);
+      previous = id;
+    }
+    if (page.size() == limit) {
+      Assert.assertNotNull(page.get(page.size() - 1).getCursorAfter());
+    }
+  }
+
+  private static List<Long> ids(List<CommentCache.Entry> page) {
+    List<Long> ids = new ArrayList<>();
+    for (CommentCache.Entry entry : page) {
+      ids.add(entry.getComment().getId());
+    }
+    return ids;
+  }
+
+  /** An entry as read from Datastore, with a cursor. Ids double as timestamps. */
+  private static CommentCache.Entry read(long id) {
+    return new CommentCache.Entry(comment(id), new byte[0], "cursor-" + id);
+  }
+
+  /** An entry as added by a write, with no cursor. */
+  private static CommentCache.Entry written(long id) {
+    return new CommentCache.Entry(comment(id), new byte[0], null);
+  }
+
+  private static Comment comment(long id) {
+    return new Comment(id, "Comment " + id, "Author", 5, null, null, id);
+  }
+}
@@ -0,0 +1,82 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.sps.data;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Checks that {@link CommentJson} writes and reads back every field of a comment. */
+@RunWith(JUnit4.class)
+public final class CommentJsonTest {
+  @Test
+  public void topLevelCommentRoundTrips() {
+    Comment comment = new Comment(
+        42, "Hello \"world\"\n", "Ada", 10, "/image", "/thumb", 1234567890123L, 0, 7);
+
+    Comment read = roundTrip(comment);
+
+    assertSameComment(comment, read);
+    Assert.assertEquals(7, read.getReplyCount());
+  }
+
+  @Test
+  public void replyRoundTrips() {
+    Comment reply = new Comment(43, "Me too", "Grace", 5, null, null, 1234567890124L, 42, 0);
+
+    Comment read = roundTrip(reply);
+
+    assertSameComment(reply, read);
+    Assert.assertEquals(42, read.getParentId());
+  }
+
+  @Test
+  public void nullFieldsAreLeftOut() {
+    Comment comment = new Comment(1, null, null, 0, null, null, 5);
+
+    String json = CommentJson.GSON.toJson(comment);
+
+    Assert.assertFalse(json.contains("message"));
+    Assert.assertFalse(json.contains("imageURL"));
+    assertSameComment(comment, CommentJson.GSON.fromJson(json, Comment.class));
+  }
+
+  @Test
+  public void unknownAndNullFieldsAreSkipped() {
+    Comment read = CommentJson.GSON.fromJson(
+        "{\"id\":3,\"extra\":{\"nested\":[1,2]},\"author\":null,\"timestamp\":9}", Comment.class);
+
+    Assert.assertEquals(3, read.getId());
+    Assert.assertNull(read.getAuthor());
+    Assert.assertEquals(9, read.getTimestamp());
+  }
+
+  private static Comment roundTrip(Comment comment) {
+    return CommentJson.GSON.fromJson(CommentJson.GSON.toJson(comment), Comment.class);
+  }
+
+  private static void assertSameComment(Comment expected, Comment actual) {
+    Assert.assertEquals(expected.getId(), actual.getId());
+    Assert.assertEquals(expected.getMessage(), actual.getMessage());
+    Assert.assertEquals(expected.getAuthor(), actual.getAuthor());
+    Assert.assertEquals(expected.getCommentLimit(), actual.getCommentLimit());
+    Assert.assertEquals(expected.getImageURL(), actual.getImageURL());
+    Assert.assertEquals(expected.getThumbnailURL(), actual.getThumbnailURL());
+    Assert.assertEquals(expected.getTimestamp(), actual.getTimestamp());
+    Assert.assertEquals(expected.getParentId(), actual.getParentId());
+  }
+}
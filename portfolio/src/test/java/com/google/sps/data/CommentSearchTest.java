@@ -0,0 +1,69 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.sps.data;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Checks how {@link CommentSearch} splits text into words and index terms. */
+@RunWith(JUnit4.class)
+public final class CommentSearchTest {
+  @Test
+  public void tokenizeSplitsOnPunctuationAndLowerCases() {
+    Assert.assertEquals(Arrays.asList("hello", "world", "it", "s", "2020"),
+        CommentSearch.tokenize("Hello, WORLD! It's 2020..."));
+  }
+
+  @Test
+  public void tokenizeDropsDuplicatesInOrder() {
+    Assert.assertEquals(Arrays.asList("b", "a"), CommentSearch.tokenize("b a B a"));
+  }
+
+  @Test
+  public void tokenizeKeepsLettersFromEveryScript() {
+    Assert.assertEquals(Arrays.asList("café", "日本語", "привет"),
+        CommentSearch.tokenize("Café — 日本語 / Привет"));
+  }
+
+  @Test
+  public void tokenizeHandlesEmptyText() {
+    Assert.assertEquals(Collections.emptyList(), CommentSearch.tokenize(null));
+    Assert.assertEquals(Collections.emptyList(), CommentSearch.tokenize(""));
+    Assert.assertEquals(Collections.emptyList(), CommentSearch.tokenize("  ?! "));
+  }
+
+  @Test
+  public void indexTermsArePrefixesOfMessageAndAuthor() {
+    List<String> terms = CommentSearch.indexTerms("Nice cat", "Al");
+
+    Assert.assertEquals(Arrays.asList("ni", "nic", "nice", "ca", "cat", "al"), terms);
+  }
+
+  @Test
+  public void indexTermsKeepOneLetterWordsAndCapLongOnes() {
+    List<String> terms = CommentSearch.indexTerms("a supercalifragilistic", null);
+
+    Assert.assertTrue(terms.contains("a"));
+    Assert.assertTrue(terms.contains("supercalifra"));
+    Assert.assertFalse(terms.contains("supercalifrag"));
+    Assert.assertFalse(terms.contains("s"));
+  }
+}
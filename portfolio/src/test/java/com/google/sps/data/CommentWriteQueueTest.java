@@ -0,0 +1,240 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import com.google.appengine.api.datastore.AsyncDatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.apphosting.api.ApiProxy;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Runs many concurrent submitters against a {@link CommentWriteQueue} backed by a fake store. */
+@RunWith(JUnit4.class)
+public final class CommentWriteQueueTest {
+  private static final int THREADS = 16;
+  private static final int WRITES_PER_THREAD = 200;
+  private static final int BATCH_SIZE = 20;
+  private static final String PROPERTY_BAD = "bad";
+
+  private final AtomicInteger batchPuts = new AtomicInteger();
+  private final AtomicInteger largestBatch = new AtomicInteger();
+  private final AtomicInteger stored = new AtomicInteger();
+
+  private AsyncDatastoreService datastore;
+  private ExecutorService executor;
+
+  @Before
+  public void setUp() {
+    setUpEnvironment();
+    executor = Executors.newFixedThreadPool(THREADS);
+
+    // Only put() is used by the queue. A batch holding a "bad" entity fails as a whole, and so
+    // does that entity on its own.
+    datastore = (AsyncDatastoreService) Proxy.newProxyInstance(
+        AsyncDatastoreService.class.getClassLoader(),
+        new Class<?>[] {AsyncDatastoreService.class},
+        (proxy, method, args) -> {
+          if (!method.getName().equals("put") || args.length != 1) {
+            throw new UnsupportedOperationException(method.getName());
+          }
+          if (args[0] instanceof Entity) {
+            return store(single((Entity) args[0])).thenApply(keys -> keys.get(0));
+          }
+          @SuppressWarnings("unchecked")
+          Iterable<Entity> entities = (Iterable<Entity>) args[0];
+          List<Entity> batch = new ArrayList<>();
+          entities.forEach(batch::add);
+          batchPuts.incrementAndGet();
+          largestBatch.accumulateAndGet(batch.size(), Math::max);
+          return store(batch);
+        });
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+    ApiProxy.clearEnvironmentForCurrentThread();
+  }
+
+  @Test
+  public void acknowledgedWritesAllCompleteUnderLoad() throws Exception {
+    CommentWriteQueue queue = new CommentWriteQueue(
+        datastore, CommentWriteQueue.Durability.ACKNOWLEDGED, BATCH_SIZE, 2, 10000);
+
+    List<CompletableFuture<Key>> futures = submitConcurrently(queue, 0);
+
+    Set<Key> keys = new HashSet<>();
+    for (CompletableFuture<Key> future : futures) {
+      Assert.assertTrue(future.isDone());
+      keys.add(future.get());
+    }
+    Assert.assertEquals(THREADS * WRITES_PER_THREAD, keys.size());
+    Assert.assertEquals(THREADS * WRITES_PER_THREAD, stored.get());
+    Assert.assertTrue(largestBatch.get() <= BATCH_SIZE);
+    Assert.assertTrue(batchPuts.get() < THREADS * WRITES_PER_THREAD);
+  }
+
+  @Test
+  public void deferredWritesAllCompleteUnderLoad() throws Exception {
+    CommentWriteQueue queue = new CommentWriteQueue(
+        datastore, CommentWriteQueue.Durability.DEFERRED, BATCH_SIZE, 2, 10000);
+
+    List<CompletableFuture<Key>> futures = submitConcurrently(queue, 0);
+
+    // Every submitter has returned, so every batch has a leader that already flushed it.
+    for (CompletableFuture<Key> future : futures) {
+      Assert.assertNotNull(future.get(0, TimeUnit.MILLISECONDS));
+    }
+    Assert.assertEquals(THREADS * WRITES_PER_THREAD, stored.get());
+  }
+
+  @Test
+  public void badWritesFailAloneAndReleaseTheirPermits() throws Exception {
+    // Fewer permits than writes, so leaked permits would show up as rejections.
+    CommentWriteQueue queue = new CommentWriteQueue(
+        datastore, CommentWriteQueue.Durability.DEFERRED, BATCH_SIZE, 2, THREADS * 4);
+
+    List<CompletableFuture<Key>> futures = submitConcurrently(queue, 7);
+
+    int failed = 0;
+    for (CompletableFuture<Key> future : futures) {
+      Assert.assertTrue(future.isDone());
+      if (future.isCompletedExceptionally()) {
+        failed++;
+      }
+    }
+    Assert.assertEquals(THREADS * WRITES_PER_THREAD / 7, failed);
+    Assert.assertEquals(THREADS * WRITES_PER_THREAD - failed, stored.get());
+    Assert.assertNotNull(queue.submit(newEntity(false)).get());
+  }
+
+  /**
+   * Submits {@code WRITES_PER_THREAD} entities from each of {@code THREADS} threads at once, and
+   * returns the futures once every submit has returned. Every {@code badEvery}th entity is bad.
+   * A submit that is rejected because the queue is full is retried.
+   */
+  private List<CompletableFuture<Key>> submitConcurrently(CommentWriteQueue queue, int badEvery)
+      throws Exception {
+    CountDownLatch start = new CountDownLatch(1);
+    List<Future<List<CompletableFuture<Key>>>> threads = new ArrayList<>();
+    for (int t = 0; t < THREADS; t++) {
+      int thread = t;
+      threads.add(executor.submit(() -> {
+        setUpEnvironment();
+        start.await();
+        List<CompletableFuture<Key>> futures = new ArrayList<>();
+        for (int i = 0; i < WRITES_PER_THREAD; i++) {
+          int n = thread * WRITES_PER_THREAD + i + 1;
+          Entity entity = newEntity(badEvery > 0 && n % badEvery == 0);
+          while (true) {
+            try {
+              futures.add(queue.submit(entity));
+              break;
+            } catch (RejectedExecutionException e) {
+              Thread.yield();
+            }
+          }
+        }
+        return futures;
+      }));
+    }
+
+    start.countDown();
+    List<CompletableFuture<Key>> futures = new ArrayList<>();
+    for (Future<List<CompletableFuture<Key>>> thread : threads) {
+      futures.addAll(thread.get(60, TimeUnit.SECONDS));
+    }
+    return futures;
+  }
+
+  /**
+   * Creating an entity key needs an app id, which comes from the thread's API environment. Only
+   * the app id and attributes are read; everything else is left at its default.
+   */
+  private static void setUpEnvironment() {
+    ApiProxy.setEnvironmentForCurrentThread((ApiProxy.Environment) Proxy.newProxyInstance(
+        ApiProxy.Environment.class.getClassLoader(),
+        new Class<?>[] {ApiProxy.Environment.class},
+        (proxy, method, args) -> {
+          switch (method.getName()) {
+            case "getAppId":
+              return "test";
+            case "getAttributes":
+              return new HashMap<String, Object>();
+            case "isLoggedIn":
+            case "isAdmin":
+              return false;
+            case "getRemainingMillis":
+              return Long.MAX_VALUE;
+            default:
+              return null;
+          }
+        }));
+  }
+
+  private static Entity newEntity(boolean bad) {
+    Entity entity = new Entity(Comment.KIND);
+    if (bad) {
+      entity.setProperty(PROPERTY_BAD, true);
+    }
+    return entity;
+  }
+
+  private static List<Entity> single(Entity entity) {
+    List<Entity> batch = new ArrayList<>();
+    batch.add(entity);
+    return batch;
+  }
+
+  /** Stores {@code batch} after a short pause, like an RPC would, unless it holds a bad entity. */
+  private CompletableFuture<List<Key>> store(List<Entity> batch) throws InterruptedException {
+    Thread.sleep(1);
+    CompletableFuture<List<Key>> result = new CompletableFuture<>();
+    for (Entity entity : batch) {
+      if (entity.hasProperty(PROPERTY_BAD)) {
+        result.completeExceptionally(new ConcurrentModificationException("Bad entity."));
+        return result;
+      }
+    }
+
+    List<Key> keys = new ArrayList<>();
+    for (Entity entity : batch) {
+      keys.add(entity.getKey());
+      stored.incrementAndGet();
+    }
+    result.complete(keys);
+    return result;
+  }
+}
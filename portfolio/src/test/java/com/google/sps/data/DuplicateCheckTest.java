@@ -0,0 +1,104 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.sps.data;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Checks which comments {@link DuplicateCheck} turns away, and for how long. */
+@RunWith(JUnit4.class)
+public final class DuplicateCheckTest {
+  private static final long LONG_WINDOW_MILLIS = 10 * 60 * 1000;
+  private static final long SHORT_WINDOW_MILLIS = 20;
+
+  @Test
+  public void repeatWithinTheWindowIsRejected() {
+    DuplicateCheck check = new DuplicateCheck(100, 0.001, LONG_WINDOW_MILLIS);
+    post(check, comment("Ada", "Hello there"));
+
+    CommentCheck.Rejection rejection = check.check(comment("Ada", "  HELLO   there "));
+
+    Assert.assertNotNull(rejection);
+    Assert.assertEquals(409, rejection.getStatus());
+  }
+
+  @Test
+  public void otherAuthorsMayPostTheSameMessage() {
+    DuplicateCheck check = new DuplicateCheck(100, 0.001, LONG_WINDOW_MILLIS);
+    post(check, comment("Ada", "Nice"));
+
+    Assert.assertNull(check.check(comment("Grace", "Nice")));
+  }
+
+  @Test
+  public void emptyMessagesAreNeverDuplicates() {
+    DuplicateCheck check = new DuplicateCheck(100, 0.001, LONG_WINDOW_MILLIS);
+    post(check, comment("Ada", ""));
+
+    Assert.assertNull(check.check(comment("Ada", "")));
+    Assert.assertNull(check.check(comment("Ada", "   ")));
+    Assert.assertNull(check.check(comment("Ada", null)));
+  }
+
+  @Test
+  public void copyPostedWhileTheFirstIsInFlightIsRejected() {
+    DuplicateCheck check = new DuplicateCheck(100, 0.001, LONG_WINDOW_MILLIS);
+    Assert.assertNull(check.check(comment("Ada", "Hello")));
+
+    Assert.assertNotNull(check.check(comment("Ada", "Hello")));
+  }
+
+  @Test
+  public void failedWriteIsForgotten() {
+    DuplicateCheck check = new DuplicateCheck(100, 0.001, LONG_WINDOW_MILLIS);
+    Comment comment = comment("Ada", "Hello");
+    Assert.assertNull(check.check(comment));
+    check.failed(comment);
+
+    Assert.assertNull(check.check(comment));
+  }
+
+  @Test
+  public void messageIsRememberedForAtLeastOneWindow() throws InterruptedException {
+    DuplicateCheck check = new DuplicateCheck(100, 0.001, SHORT_WINDOW_MILLIS);
+    post(check, comment("Ada", "Hello"));
+
+    // The next check rotates the filters; the message is still in the previous one.
+    Thread.sleep(SHORT_WINDOW_MILLIS);
+    Assert.assertNotNull(check.check(comment("Ada", "Hello")));
+  }
+
+  @Test
+  public void messageIsForgottenAfterTwoWindows() throws InterruptedException {
+    DuplicateCheck check = new DuplicateCheck(100, 0.001, SHORT_WINDOW_MILLIS);
+    post(check, comment("Ada", "Hello"));
+
+    Thread.sleep(2 * SHORT_WINDOW_MILLIS);
+    Assert.assertNull(check.check(comment("Ada", "Hello")));
+  }
+
+  /** Checks and writes {@code comment}, as a successful POST does. */
+  private static void post(DuplicateCheck check, Comment comment) {
+    Assert.assertNull(check.check(comment));
+    check.written(comment);
+  }
+
+  private static Comment comment(String author, String message) {
+    return new Comment(0, message, author, 0, null, null, 1);
+  }
+}
@@ -0,0 +1,99 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.sps.data;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Checks the bucket edges of {@link LogHistogram}. */
+@RunWith(JUnit4.class)
+public final class LogHistogramTest {
+  @Test
+  public void emptyHistogramReadsZero() {
+    LogHistogram histogram = new LogHistogram();
+
+    Assert.assertEquals(0, histogram.getCount());
+    Assert.assertEquals(0, histogram.valueAtPercentile(99));
+    Assert.assertEquals(0, histogram.countBelow(1000));
+  }
+
+  @Test
+  public void smallValuesAreExact() {
+    LogHistogram histogram = new LogHistogram();
+    for (long value = 0; value < 16; value++) {
+      histogram.record(value);
+    }
+
+    for (long bound = 0; bound <= 16; bound++) {
+      Assert.assertEquals(bound, histogram.countBelow(bound));
+    }
+    Assert.assertEquals(15, histogram.valueAtPercentile(100));
+  }
+
+  @Test
+  public void largeValuesAreWithinAnEighth() {
+    long[] values = {17, 100, 999, 123456, 1L << 30, (1L << 40) - 1};
+    for (long value : values) {
+      LogHistogram histogram = new LogHistogram();
+      histogram.record(value);
+
+      long upper = histogram.valueAtPercentile(50);
+      Assert.assertTrue(value + " reads as " + upper, upper >= value);
+      Assert.assertTrue(value + " reads as " + upper, upper - value <= value / 8);
+    }
+  }
+
+  @Test
+  public void powersOfTwoFallOnBucketEdges() {
+    LogHistogram histogram = new LogHistogram();
+    histogram.record(63);
+    histogram.record(64);
+    histogram.record(127);
+    histogram.record(128);
+
+    Assert.assertEquals(1, histogram.countBelow(64));
+    Assert.assertEquals(3, histogram.countBelow(128));
+    Assert.assertEquals(4, histogram.countBelow(256));
+  }
+
+  @Test
+  public void negativeAndHugeValuesAreClamped() {
+    LogHistogram histogram = new LogHistogram();
+    histogram.record(-5);
+    histogram.record(Long.MAX_VALUE / 2);
+
+    Assert.assertEquals(2, histogram.getCount());
+    Assert.assertEquals(1, histogram.countBelow(1));
+    Assert.assertTrue(histogram.valueAtPercentile(100) >= 1L << 40);
+  }
+
+  @Test
+  public void percentilesPickTheRankedBucket() {
+    LogHistogram histogram = new LogHistogram();
+    for (int i = 0; i < 90; i++) {
+      histogram.record(1);
+    }
+    for (int i = 0; i < 10; i++) {
+      histogram.record(1000);
+    }
+
+    Assert.assertEquals(1, histogram.valueAtPercentile(90));
+    Assert.assertTrue(histogram.valueAtPercentile(91) >= 1000);
+    Assert.assertEquals(90 + 10 * 1000, histogram.getSum());
+  }
+}
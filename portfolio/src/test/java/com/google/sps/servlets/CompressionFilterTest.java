@@ -0,0 +1,56 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.sps.servlets;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Checks how {@link CompressionFilter} reads the Accept-Encoding header. */
+@RunWith(JUnit4.class)
+public final class CompressionFilterTest {
+  @Test
+  public void gzipIsAccepted() {
+    Assert.assertTrue(CompressionFilter.acceptsGzip("gzip"));
+    Assert.assertTrue(CompressionFilter.acceptsGzip("deflate, GZIP, br"));
+    Assert.assertTrue(CompressionFilter.acceptsGzip("gzip;q=0.5"));
+    Assert.assertTrue(CompressionFilter.acceptsGzip(" gzip ; q=1.0 "));
+  }
+
+  @Test
+  public void wildcardAcceptsGzip() {
+    Assert.assertTrue(CompressionFilter.acceptsGzip("*"));
+    Assert.assertTrue(CompressionFilter.acceptsGzip("br, *;q=0.1"));
+  }
+
+  @Test
+  public void missingOrOtherEncodingsAreNotGzip() {
+    Assert.assertFalse(CompressionFilter.acceptsGzip(null));
+    Assert.assertFalse(CompressionFilter.acceptsGzip(""));
+    Assert.assertFalse(CompressionFilter.acceptsGzip("identity"));
+    Assert.assertFalse(CompressionFilter.acceptsGzip("deflate, br"));
+    Assert.assertFalse(CompressionFilter.acceptsGzip("x-gzip2"));
+  }
+
+  @Test
+  public void zeroOrInvalidQualityRefusesGzip() {
+    Assert.assertFalse(CompressionFilter.acceptsGzip("gzip;q=0"));
+    Assert.assertFalse(CompressionFilter.acceptsGzip("gzip; q=0.000"));
+    Assert.assertFalse(CompressionFilter.acceptsGzip("gzip;q=high"));
+    Assert.assertFalse(CompressionFilter.acceptsGzip("*;q=0"));
+  }
+}
@@ -89,13 +89,16 @@ public class FormHandlerServlet extends HttpServlet {
     ImagesService imagesService = ImagesServiceFactory.getImagesService();
     ServingUrlOptions options = ServingUrlOptions.Builder.withBlobKey(blobKey);
 
+    // Only ask ImagesService once; it's an RPC and the URL doesn't change for a given blob.
+    String servingUrl = imagesService.getServingUrl(options);
+
     // To support running in Google Cloud Shell with AppEngine's devserver, we must use the relative
     // path to the image, rather than the path returned by imagesService which contains a host.
     try {
-      URL url = new URL(imagesService.getServingUrl(options));
+      URL url = new URL(servingUrl);
       return url.getPath();
     } catch (MalformedURLException e) {
-      return imagesService.getServingUrl(options);
+      return servingUrl;
     }
   }
 }
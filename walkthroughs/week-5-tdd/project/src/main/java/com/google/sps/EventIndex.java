@@ -0,0 +1,127 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Events indexed by attendee, so a meeting query only looks at the calendars of the people it
+ * asks about. Each attendee keeps their event times, sorted, along with those times merged into
+ * non-overlapping busy ranges. Adding or removing an event only re-merges the calendars of that
+ * event's attendees.
+ */
+public final class EventIndex {
+  // Orders ranges by start, then by duration so distinct ranges with the same start don't tie.
+  private static final Comparator<TimeRange> ORDER_BY_START_AND_DURATION =
+      TimeRange.ORDER_BY_START.thenComparing(TimeRange::duration);
+
+  private static final class Calendar {
+    // Each event time and how many events share it.
+    private final TreeMap<TimeRange, Integer> times = new TreeMap<>(ORDER_BY_START_AND_DURATION);
+    private List<TimeRange> busy = Collections.emptyList();
+
+    private void merge() {
+      List<TimeRange> merged = new ArrayList<>();
+      int start = 0;
+      int end = -1;
+      for (TimeRange time : times.keySet()) {
+        if (time.start() > end) {
+          if (end > start) {
+            merged.add(TimeRange.fromStartEnd(start, end, false));
+          }
+          start = time.start();
+        }
+        end = Math.max(end, time.end());
+      }
+      if (end > start) {
+        merged.add(TimeRange.fromStartEnd(start, end, false));
+      }
+      busy = Collections.unmodifiableList(merged);
+    }
+  }
+
+  private final Map<String, Calendar> calendars = new HashMap<>();
+  private final Map<Event, Integer> events = new HashMap<>();
+
+  /** Creates an empty index. */
+  public EventIndex() {}
+
+  /** Creates an index of {@code events}. */
+  public EventIndex(Collection<Event> events) {
+    for (Event event : events) {
+      this.events.merge(event, 1, Integer::sum);
+      for (String attendee : event.getAttendees()) {
+        calendars.computeIfAbsent(attendee, name -> new Calendar())
+            .times.merge(event.getWhen(), 1, Integer::sum);
+      }
+    }
+    for (Calendar calendar : calendars.values()) {
+      calendar.merge();
+    }
+  }
+
+  /** Adds {@code event} to the calendar of each of its attendees. */
+  public synchronized void add(Event event) {
+    events.merge(event, 1, Integer::sum);
+    for (String attendee : event.getAttendees()) {
+      Calendar calendar = calendars.computeIfAbsent(attendee, name -> new Calendar());
+      calendar.times.merge(event.getWhen(), 1, Integer::sum);
+      calendar.merge();
+    }
+  }
+
+  /**
+   * Removes {@code event} from the calendar of each of its attendees. Returns false, and changes
+   * nothing, if the event isn't in the index.
+   */
+  public synchronized boolean remove(Event event) {
+    Integer count = events.get(event);
+    if (count == null) {
+      return false;
+    }
+    if (count == 1) {
+      events.remove(event);
+    } else {
+      events.put(event, count - 1);
+    }
+
+    for (String attendee : event.getAttendees()) {
+      Calendar calendar = calendars.get(attendee);
+      calendar.times.computeIfPresent(event.getWhen(), (time, n) -> n == 1 ? null : n - 1);
+      if (calendar.times.isEmpty()) {
+        calendars.remove(attendee);
+      } else {
+        calendar.merge();
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns the times {@code attendee} is busy as a read-only list of non-overlapping ranges,
+   * sorted by start. Ranges that only touch are merged.
+   */
+  public synchronized List<TimeRange> getBusy(String attendee) {
+    Calendar calendar = calendars.get(attendee);
+    return calendar == null ? Collections.emptyList() : calendar.busy;
+  }
+}
@@ -0,0 +1,149 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** */
+@RunWith(JUnit4.class)
+public final class EventIndexTest {
+  // Some people that we can use in our tests.
+  private static final String PERSON_A = "Person A";
+  private static final String PERSON_B = "Person B";
+  private static final String PERSON_C = "Person C";
+
+  private static final int TIME_0800AM = TimeRange.getTimeInMinutes(8, 0);
+  private static final int TIME_0830AM = TimeRange.getTimeInMinutes(8, 30);
+  private static final int TIME_0900AM = TimeRange.getTimeInMinutes(9, 0);
+  private static final int TIME_0930AM = TimeRange.getTimeInMinutes(9, 30);
+  private static final int TIME_1000AM = TimeRange.getTimeInMinutes(10, 0);
+
+  private static final int DURATION_30_MINUTES = 30;
+  private static final int DURATION_60_MINUTES = 60;
+
+  private Event eventA;
+  private Event eventAB;
+  private Event eventB;
+
+  @Before
+  public void setUp() {
+    eventA = new Event("Event 1", TimeRange.fromStartDuration(TIME_0800AM, DURATION_60_MINUTES),
+        Arrays.asList(PERSON_A));
+    eventAB = new Event("Event 2", TimeRange.fromStartDuration(TIME_0830AM, DURATION_60_MINUTES),
+        Arrays.asList(PERSON_A, PERSON_B));
+    eventB = new Event("Event 3", TimeRange.fromStartDuration(TIME_1000AM, DURATION_30_MINUTES),
+        Arrays.asList(PERSON_B));
+  }
+
+  @Test
+  public void mergesOverlappingEvents() {
+    EventIndex index = new EventIndex(Arrays.asList(eventA, eventAB, eventB));
+
+    List<TimeRange> expectedA =
+        Arrays.asList(TimeRange.fromStartEnd(TIME_0800AM, TIME_0930AM, false));
+    List<TimeRange> expectedB =
+        Arrays.asList(TimeRange.fromStartEnd(TIME_0830AM, TIME_0930AM, false),
+            TimeRange.fromStartDuration(TIME_1000AM, DURATION_30_MINUTES));
+
+    Assert.assertEquals(expectedA, index.getBusy(PERSON_A));
+    Assert.assertEquals(expectedB, index.getBusy(PERSON_B));
+  }
+
+  @Test
+  public void mergesTouchingEvents() {
+    EventIndex index = new EventIndex();
+    index.add(new Event("Event 1", TimeRange.fromStartEnd(TIME_0800AM, TIME_0900AM, false),
+        Arrays.asList(PERSON_A)));
+    index.add(new Event("Event 2", TimeRange.fromStartEnd(TIME_0900AM, TIME_1000AM, false),
+        Arrays.asList(PERSON_A)));
+
+    List<TimeRange> expected =
+        Arrays.asList(TimeRange.fromStartEnd(TIME_0800AM, TIME_1000AM, false));
+
+    Assert.assertEquals(expected, index.getBusy(PERSON_A));
+  }
+
+  @Test
+  public void unknownAttendeeIsFree() {
+    EventIndex index = new EventIndex(Arrays.asList(eventA));
+
+    Assert.assertEquals(Collections.emptyList(), index.getBusy(PERSON_C));
+  }
+
+  @Test
+  public void removeSplitsMergedRange() {
+    EventIndex index = new EventIndex(Arrays.asList(eventA, eventAB));
+    Assert.assertTrue(index.remove(eventAB));
+
+    List<TimeRange> expected = Arrays.asList(eventA.getWhen());
+
+    Assert.assertEquals(expected, index.getBusy(PERSON_A));
+    Assert.assertEquals(Collections.emptyList(), index.getBusy(PERSON_B));
+  }
+
+  @Test
+  public void removeKeepsDuplicateEvent() {
+    // The same event added twice stays until it has been removed twice.
+    EventIndex index = new EventIndex(Arrays.asList(eventA, eventA));
+
+    Assert.assertTrue(index.remove(eventA));
+    Assert.assertEquals(Arrays.asList(eventA.getWhen()), index.getBusy(PERSON_A));
+
+    Assert.assertTrue(index.remove(eventA));
+    Assert.assertEquals(Collections.emptyList(), index.getBusy(PERSON_A));
+  }
+
+  @Test
+  public void removeUnknownEvent() {
+    EventIndex index = new EventIndex(Arrays.asList(eventA));
+
+    Assert.assertFalse(index.remove(eventB));
+    Assert.assertEquals(Arrays.asList(eventA.getWhen()), index.getBusy(PERSON_A));
+  }
+
+  @Test
+  public void queryMatchesUnindexedQuery() {
+    Collection<Event> events = Arrays.asList(eventA, eventAB, eventB);
+    MeetingRequest request = new MeetingRequest(Arrays.asList(PERSON_B), DURATION_30_MINUTES);
+    request.addOptionalAttendee(PERSON_A);
+
+    FindMeetingQuery query = new FindMeetingQuery();
+    Collection<TimeRange> expected = query.query(events, request);
+    Collection<TimeRange> actual = query.query(new EventIndex(events), request);
+
+    Assert.assertEquals(expected, actual);
+  }
+
+  @Test
+  public void queryReadsOnlyRequestedAttendees() {
+    EventIndex index = new EventIndex(Arrays.asList(eventA, eventB));
+    MeetingRequest request = new MeetingRequest(Arrays.asList(PERSON_B), DURATION_60_MINUTES);
+
+    Collection<TimeRange> actual = new FindMeetingQuery().query(index, request);
+    Collection<TimeRange> expected =
+        Arrays.asList(TimeRange.fromStartEnd(TimeRange.START_OF_DAY, TIME_1000AM, false),
+            TimeRange.fromStartEnd(TIME_1000AM + DURATION_30_MINUTES, TimeRange.END_OF_DAY, true));
+
+    Assert.assertEquals(expected, actual);
+  }
+}